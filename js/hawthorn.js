@@ -389,6 +389,43 @@ var hawthorn =
 		this.getHandler(id).failure(error);
 	},
 
+	stream : function(channel, user, displayName, extra, permissions, keyTime,
+		key, lastTime, continuation, failure)
+	{
+		// Older browsers don't have event streams; use wait instead
+		if (!window.EventSource)
+		{
+			failure('Event streams not supported');
+			return null;
+		}
+
+		// Each event is a JSON array of new messages, with the time of the
+		// last one as its ID
+		var source = new EventSource(this.servers[this.currentServer]
+				+ 'hawthorn/stream?channel=' + channel + '&user=' + user
+				+ '&displayname=' + encodeURIComponent(displayName)
+				+ '&extra=' + encodeURIComponent(extra)
+				+ '&permissions=' + permissions + '&keytime=' + keyTime
+				+ "&key=" + key + "&lasttime=" + lastTime);
+		source.onmessage = function(e)
+		{
+			continuation(Number(e.lastEventId), JSON.parse(e.data));
+		};
+		source.onerror = function()
+		{
+			// If the connection drops, the browser reconnects by itself and
+			// carries on from the last event; it only gives up if the stream
+			// couldn't be started (e.g. invalid key)
+			if (source.readyState == 2)
+			{
+				failure('Stream closed');
+			}
+		};
+
+		// Call close() on this to stop receiving messages
+		return source;
+	},
+
 	reAcquire : function(url, channel, user, displayName, extra, permissions,
 		continuation, failure)
 	{
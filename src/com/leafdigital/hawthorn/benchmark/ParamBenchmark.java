@@ -0,0 +1,198 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.*;
+
+import com.leafdigital.hawthorn.server.*;
+
+/**
+ * Measures the cost of parsing and validating the parameters of a typical
+ * poll request, comparing {@link HttpParams} against the substring,
+ * URLDecoder, HashMap and regular expression code that HttpEvent used
+ * previously.
+ * <p>
+ * Optional command line argument: number of requests per run (default
+ * 1000000).
+ */
+public class ParamBenchmark
+{
+	private final static String REQUEST = "/hawthorn/poll?channel=chat_room"
+		+ "&user=u12345&displayname=Some%20User%20%C3%A9&extra=&permissions=rw"
+		+ "&keytime=1262304000000&key=0123456789abcdef0123456789abcdef01234567"
+		+ "&id=17&lasttime=1262300000000";
+
+	/**
+	 * @param args Command-line arguments
+	 */
+	public static void main(String[] args)
+	{
+		int requests = 1000000;
+		if(args.length > 0)
+		{
+			requests = Integer.parseInt(args[0]);
+		}
+
+		System.out.println("Run\tOld ns/request\tNew ns/request");
+		for(int run = 1; run <= 5; run++)
+		{
+			System.out.println(run + "\t" + testOld(requests) + "\t"
+				+ testNew(requests));
+		}
+	}
+
+	/**
+	 * @param requests Number of requests to parse
+	 * @return Nanoseconds per request
+	 */
+	private static long testOld(int requests)
+	{
+		int valid = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < requests; i++)
+		{
+			HashMap<String, String> params = parseOld(REQUEST);
+			if(params.get("channel").matches(Hawthorn.REGEXP_USERCHANNEL)
+				&& params.get("user").matches(Hawthorn.REGEXP_USERCHANNEL)
+				&& params.get("displayname").matches(Hawthorn.REGEXP_DISPLAYNAME)
+				&& params.get("extra").matches(Hawthorn.REGEXP_EXTRA)
+				&& params.get("keytime").matches("[0-9]{1,18}")
+				&& params.get("id").matches("[0-9]{1,9}")
+				&& params.get("lasttime").matches("[0-9]{1,18}"))
+			{
+				valid++;
+			}
+		}
+		long time = (System.nanoTime() - start) / requests;
+		check(valid, requests);
+		return time;
+	}
+
+	/**
+	 * @param requests Number of requests to parse
+	 * @return Nanoseconds per request
+	 */
+	private static long testNew(int requests)
+	{
+		byte[] request = getBytes(REQUEST);
+		int valid = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < requests; i++)
+		{
+			HttpParams params = HttpParams.parse(request);
+			if(HttpParams.isUserChannel(params.get(HttpParams.CHANNEL))
+				&& HttpParams.isUserChannel(params.get(HttpParams.USER))
+				&& HttpParams.isDisplayName(params.get(HttpParams.DISPLAYNAME))
+				&& HttpParams.isExtra(params.get(HttpParams.EXTRA))
+				&& HttpParams.isLong(params.get(HttpParams.KEYTIME))
+				&& HttpParams.isInt(params.get(HttpParams.ID))
+				&& HttpParams.isLong(params.get(HttpParams.LASTTIME)))
+			{
+				valid++;
+			}
+		}
+		long time = (System.nanoTime() - start) / requests;
+		check(valid, requests);
+		return time;
+	}
+
+	/**
+	 * @param request Request path
+	 * @return Bytes of request, as received by the server
+	 */
+	private static byte[] getBytes(String request)
+	{
+		try
+		{
+			return request.getBytes("US-ASCII");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new Error("Missing US-ASCII support", e);
+		}
+	}
+
+	/**
+	 * Makes sure every request passed validation (and that the JIT can't skip
+	 * the work).
+	 * @param valid Number of valid requests
+	 * @param requests Total number of requests
+	 */
+	private static void check(int valid, int requests)
+	{
+		if(valid != requests)
+		{
+			throw new Error("Validation failed");
+		}
+	}
+
+	/**
+	 * Parses parameters the way HttpEvent used to.
+	 * @param request Request path
+	 * @return Parameter map
+	 */
+	private static HashMap<String, String> parseOld(String request)
+	{
+		HashMap<String, String> params = new HashMap<String, String>();
+		int question = request.indexOf('?');
+		if(question == -1)
+		{
+			return params;
+		}
+		String remainder = request.substring(question + 1);
+		while(remainder.length() > 0)
+		{
+			int and = remainder.indexOf('&');
+			String paramPair;
+			if(and == -1)
+			{
+				paramPair = remainder;
+				remainder = "";
+			}
+			else
+			{
+				paramPair = remainder.substring(0, and);
+				remainder = remainder.substring(and + 1);
+			}
+
+			int equals = paramPair.indexOf('=');
+			if(equals == -1)
+			{
+				params.put(paramPair, null);
+			}
+			else
+			{
+				try
+				{
+					String value = paramPair.substring(equals + 1);
+					params.put(paramPair.substring(0, equals), URLDecoder.decode(
+						value, "UTF-8"));
+				}
+				catch(UnsupportedEncodingException e)
+				{
+					throw new Error("UTF-8 not supported?!", e);
+				}
+			}
+		}
+		return params;
+	}
+}
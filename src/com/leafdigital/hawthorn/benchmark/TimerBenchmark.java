@@ -0,0 +1,156 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.benchmark;
+
+import java.util.*;
+
+import com.leafdigital.hawthorn.util.TimerWheel;
+
+/**
+ * Measures the cost of adding and cancelling timers with large numbers of
+ * timers outstanding, comparing {@link TimerWheel} against the sorted set
+ * with linear-scan removal that the event handler used previously.
+ * <p>
+ * Optional command line argument: maximum number of outstanding timers
+ * (default 1000000).
+ */
+public class TimerBenchmark
+{
+	private final static int OPERATIONS = 100000;
+
+	/** Largest size at which to bother testing the linear-scan version */
+	private final static int MAX_SORTED = 10000;
+
+	/** Timer as stored in the old sorted set. */
+	private static class SortedTimer implements Comparable<SortedTimer>
+	{
+		private int id;
+		private long time;
+
+		private SortedTimer(int id, long time)
+		{
+			this.id = id;
+			this.time = time;
+		}
+
+		public int compareTo(SortedTimer other)
+		{
+			return other == this ? 0 : time < other.time ? -1 : 1;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			return obj == this;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return id;
+		}
+	}
+
+	/**
+	 * @param args Command-line arguments
+	 */
+	public static void main(String[] args)
+	{
+		int max = 1000000;
+		if(args.length > 0)
+		{
+			max = Integer.parseInt(args[0]);
+		}
+
+		System.out.println("Outstanding\tWheel ns/op\tSorted set ns/op");
+		for(int size = 1000; size <= max; size *= 10)
+		{
+			// Run each twice and report the second, so JIT has warmed up
+			testWheel(size);
+			long wheel = testWheel(size);
+			String sorted = "-";
+			if(size <= MAX_SORTED)
+			{
+				testSorted(size);
+				sorted = "" + testSorted(size);
+			}
+			System.out.println(size + "\t" + wheel + "\t" + sorted);
+		}
+	}
+
+	/**
+	 * Times add+cancel pairs on a wheel that already contains the given number
+	 * of timers.
+	 * @param size Number of outstanding timers
+	 * @return Nanoseconds per add+cancel
+	 */
+	private static long testWheel(int size)
+	{
+		Random random = new Random(size);
+		long now = System.currentTimeMillis();
+		TimerWheel<Object> wheel = new TimerWheel<Object>(50, 512, now);
+		Object item = new Object();
+		for(int i = 0; i < size; i++)
+		{
+			wheel.add(now + random.nextInt(60000), item);
+		}
+
+		long start = System.nanoTime();
+		for(int i = 0; i < OPERATIONS; i++)
+		{
+			wheel.cancel(wheel.add(now + random.nextInt(60000), item));
+		}
+		return (System.nanoTime() - start) / OPERATIONS;
+	}
+
+	/**
+	 * Times add+remove pairs on a sorted set (with removal by ID scan) that
+	 * already contains the given number of timers.
+	 * @param size Number of outstanding timers
+	 * @return Nanoseconds per add+remove
+	 */
+	private static long testSorted(int size)
+	{
+		Random random = new Random(size);
+		long now = System.currentTimeMillis();
+		TreeSet<SortedTimer> set = new TreeSet<SortedTimer>();
+		int id = 0;
+		for(int i = 0; i < size; i++)
+		{
+			set.add(new SortedTimer(++id, now + random.nextInt(60000)));
+		}
+
+		int operations = OPERATIONS / 100;
+		long start = System.nanoTime();
+		for(int i = 0; i < operations; i++)
+		{
+			int added = ++id;
+			set.add(new SortedTimer(added, now + random.nextInt(60000)));
+			for(Iterator<SortedTimer> it = set.iterator(); it.hasNext();)
+			{
+				if(it.next().id == added)
+				{
+					it.remove();
+				}
+			}
+		}
+		return (System.nanoTime() - start) / operations;
+	}
+}
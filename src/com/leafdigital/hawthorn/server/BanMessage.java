@@ -107,6 +107,14 @@ public class BanMessage extends UniqueMessage
 			+ "',until:" + until;
 	}
 
+	@Override
+	protected String getAdditionalJSON(boolean trusted)
+	{
+		return ",\"ban\":\"" + (trusted ? ban : banMasked)
+			+ "\",\"banDisplayName\":\"" + JS.escJSON(banDisplayName)
+			+ "\",\"banExtra\":\"" + JS.escJSON(banExtra) + "\",\"until\":" + until;
+	}
+
 	@Override
 	protected String getAdditionalLog()
 	{
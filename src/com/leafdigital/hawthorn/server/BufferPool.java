@@ -0,0 +1,100 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of byte buffers, all of the same size. Buffers are
+ * allocated when the pool is empty; when more than the maximum number are
+ * released, the extras are left for the garbage collector.
+ */
+final class BufferPool
+{
+	private int bufferSize, maxPooled;
+
+	private boolean direct;
+
+	private ConcurrentLinkedQueue<ByteBuffer> free =
+		new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private AtomicInteger pooled = new AtomicInteger();
+
+	/**
+	 * @param bufferSize Size of each buffer in bytes
+	 * @param maxPooled Maximum number of free buffers to keep
+	 * @param direct True for direct buffers (best for data that is only
+	 *   written to channels); false for heap buffers, whose array can be
+	 *   accessed
+	 */
+	BufferPool(int bufferSize, int maxPooled, boolean direct)
+	{
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+		this.direct = direct;
+	}
+
+	/** @return Size of buffers in this pool */
+	int getBufferSize()
+	{
+		return bufferSize;
+	}
+
+	/**
+	 * Obtains a buffer from the pool, or allocates a new one if there are none
+	 * available.
+	 * @return Cleared buffer
+	 */
+	ByteBuffer acquire()
+	{
+		ByteBuffer buffer = free.poll();
+		if(buffer == null)
+		{
+			return direct ? ByteBuffer.allocateDirect(bufferSize)
+				: ByteBuffer.allocate(bufferSize);
+		}
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool. The buffer must not be used again by the
+	 * caller.
+	 * @param buffer Buffer obtained from {@link #acquire()}
+	 */
+	void release(ByteBuffer buffer)
+	{
+		if(pooled.incrementAndGet() > maxPooled)
+		{
+			pooled.decrementAndGet();
+			return;
+		}
+		free.add(buffer);
+	}
+
+	/** @return Number of free buffers currently in the pool */
+	int getPooledCount()
+	{
+		return pooled.get();
+	}
+}
@@ -23,6 +23,7 @@ import java.util.*;
 
 import com.leafdigital.hawthorn.server.HttpServer.Connection;
 import com.leafdigital.hawthorn.server.Logger.Level;
+import com.leafdigital.hawthorn.util.TimerWheel;
 
 /** Channel. */
 public class Channel extends HawthornObject
@@ -38,39 +39,136 @@ public class Channel extends HawthornObject
 	/** Time to wait with no activity before assuming a user is absent */
 	private final static int PRESENT_TIMEOUT = 10 * 1000;
 
+	/**
+	 * Time after which to check a channel that has nothing else scheduled, in
+	 * case it can be thrown away
+	 */
+	private final static int EMPTY_CHECK_DELAY = 5 * 1000;
+
 	private final static Message[] NO_MESSAGES = {};
 
+	/** Maximum number of listeners to send new messages to in a single event */
+	private final static int FAN_OUT_BATCH = 100;
+
+	/**
+	 * Time between heartbeats on event streams; this must be less than the
+	 * connection timeout
+	 */
+	private final static int STREAM_HEARTBEAT_TIME = 25 * 1000;
+
+	/** Event stream heartbeat (a comment line, ignored by clients) */
+	private final static byte[] STREAM_HEARTBEAT = HttpServer.getUTF8(":\n\n");
+
 	/**
 	 * List of messages remembered in the channel; it remembers messages for a
 	 * certain time
 	 */
-	private LinkedList<Message> messages = new LinkedList<Message>();
+	private MessageHistory messages = new MessageHistory();
 
 	/** List of listeners currently waiting for channel messages */
-	private HashMap<Integer, Listener> listeners =
-		new HashMap<Integer, Listener>();
+	private HashSet<Listener> listeners = new HashSet<Listener>();
 
 	/** Index into listeners by user name */
 	private HashMap<String, LinkedList<Listener>> listenersByUser =
 		new HashMap<String, LinkedList<Listener>>();
 
+	/** Event streams that receive every new message */
+	private HashSet<Subscriber> subscribers = new HashSet<Subscriber>();
+
+	/** Index into subscribers by user name */
+	private HashMap<String, LinkedList<Subscriber>> subscribersByUser =
+		new HashMap<String, LinkedList<Subscriber>>();
+
 	/** Map from banned user name to time ban expires */
 	private HashMap<String, Long> bans = new HashMap<String, Long>();
 
 	/** Map from user name of everyone present in the channel */
 	private HashMap<String, UserInfo> present = new HashMap<String, UserInfo>();
 
+	/** Upcoming presence timeouts and ban expiries, earliest first */
+	private PriorityQueue<Deadline> deadlines = new PriorityQueue<Deadline>();
+
+	/** Timer for next call to cleanup, or null if none */
+	private TimerWheel.Timer<Channel> cleanupTimer;
+
+	/** Time of next call to cleanup (if cleanupTimer is set) */
+	private long cleanupTime;
+
+	/**
+	 * True once the channel has been removed from the channel list; anything
+	 * that arrives after that is passed on to the new channel of the same name
+	 */
+	private volatile boolean discarded;
+
 	/** Set containing the userid and unique of all messages in this chan */
-	private HashSet<String> uniqueMessages = new HashSet<String>();
+	private UniqueSet uniqueMessages = new UniqueSet();
+
+	/**
+	 * Set containing userid and unique of messages with a unique that isn't
+	 * stored as a number (non-numeric, which is only possible for bans, or
+	 * with leading zeros)
+	 */
+	private HashSet<String> otherUniqueMessages = new HashSet<String>();
+
+	/**
+	 * Time of the newest message (only changed with the channel locked, but
+	 * volatile so it can be read without locking)
+	 */
+	private volatile long lastMessage = 0;
+
+	/**
+	 * Incremented whenever messages are added or the present users change, so
+	 * that cached responses can tell if they're out of date
+	 */
+	private volatile long version = 0;
+
+	/** Cache of responses to recent requests */
+	private RecentCache recentCache = new RecentCache();
 
-	private long lastMessage = 0;
+	/** True if present users have changed since the last snapshot */
+	private boolean presentChanged;
+
+	/** True if bans have changed since the last snapshot */
+	private boolean bansChanged;
+
+	/**
+	 * Current history, present users and bans. Anything that changes the
+	 * channel locks it, then publishes a new snapshot; methods that only read
+	 * use the snapshot and don't lock at all.
+	 */
+	private volatile Snapshot snapshot = new Snapshot(messages.getView(),
+		new HashMap<String, UserInfo>(), new Name[0], new HashSet<String>());
+
+	/** Channel state at a particular time. This is never changed. */
+	private static final class Snapshot
+	{
+		private final MessageHistory.View messages;
+		private final Map<String, UserInfo> present;
+		private final Name[] names;
+		private final Set<String> bans;
+
+		/**
+		 * @param messages Message history
+		 * @param present Present users (not changed after this)
+		 * @param names Names of present users
+		 * @param bans Banned user names (not changed after this)
+		 */
+		private Snapshot(MessageHistory.View messages,
+			Map<String, UserInfo> present, Name[] names, Set<String> bans)
+		{
+			this.messages = messages;
+			this.present = present;
+			this.names = names;
+			this.bans = bans;
+		}
+	}
 
 	/** Class handles a user/connection listening for an upcoming message. */
 	private class Listener extends Event
 	{
 		private Connection connection;
 
-		private int timeoutId;
+		private TimerWheel.Timer<Event> timeout;
 
 		private long time;
 
@@ -99,12 +197,12 @@ public class Channel extends HawthornObject
 			this.trusted = trusted;
 
 			// Set timer to wait for the event
-			timeoutId =
+			timeout =
 				getEventHandler().addTimedEvent(System.currentTimeMillis() + WAIT_TIME,
 					this);
 
 			// Add this to the listeners list
-			listeners.put(timeoutId, this);
+			listeners.add(this);
 
 			// And add it to the per-user index
 			LinkedList<Listener> existing = listenersByUser.get(user);
@@ -127,52 +225,305 @@ public class Channel extends HawthornObject
 			{
 				// If item wasn't in list anyway, we've already responded, so don't
 				// do anything else
-				if(listeners.remove(timeoutId) == null)
+				if(!listeners.remove(this))
 				{
 					return;
 				}
 			}
 
 			// Send the no-response message
-			sendWaitResponse(connection, id, time, NO_MESSAGES, trusted);
+			new WaitResponse(time, NO_MESSAGES).send(connection, id, trusted);
+		}
+
+		/**
+		 * Called when one or more new messages are received, after this listener
+		 * has been taken out of the listeners list. The channel must be locked.
+		 */
+		private void claim()
+		{
+			// Remove from by-user index
+			LinkedList<Listener> byUser = listenersByUser.get(user);
+			if(byUser != null) // It should not be null, but let's play safe
+			{
+				byUser.remove(this);
+				if(byUser.isEmpty())
+				{
+					listenersByUser.remove(user);
+				}
+			}
+			// Update access time to current in user info (unless the messages
+			// include this user leaving)
+			UserInfo info = present.get(user);
+			if(info != null)
+			{
+				info.access();
+			}
 		}
 
 		/**
-		 * Called when one or more new messages are received.
+		 * Sends new messages to this listener. Called after {@link #claim()},
+		 * without the channel locked.
 		 *
-		 * @param messages Messages
+		 * @param response Response containing new messages
 		 */
-		private void newMessages(Message[] messages)
+		private void newMessages(WaitResponse response)
+		{
+			// Remove event
+			getEventHandler().removeTimedEvent(timeout);
+
+			// Send response
+			response.send(connection, id, trusted);
+		}
+	}
+
+	/** Sends new messages to a batch of listeners. */
+	private class FanOutEvent extends Event
+	{
+		private Listener[] listeners;
+		private int start, end;
+		private WaitResponse response;
+
+		/**
+		 * @param listeners Listeners
+		 * @param start First index in array to send to
+		 * @param end Index after last one to send to
+		 * @param response Response containing new messages
+		 */
+		private FanOutEvent(Listener[] listeners, int start, int end,
+			WaitResponse response)
+		{
+			super(Channel.this.getApp());
+			this.listeners = listeners;
+			this.start = start;
+			this.end = end;
+			this.response = response;
+		}
+
+		@Override
+		public void handle() throws OperationException
+		{
+			for(int i = start; i < end; i++)
+			{
+				listeners[i].newMessages(response);
+			}
+		}
+	}
+
+	/**
+	 * Event stream that receives all new messages until its connection closes.
+	 * This is also the timed event that sends heartbeats, which keep the
+	 * connection open and the user present in the channel, and the event that
+	 * runs when the connection closes.
+	 */
+	private class Subscriber extends Event
+	{
+		private Connection connection;
+
+		private TimerWheel.Timer<Event> heartbeat;
+
+		private String user;
+
+		private boolean trusted;
+
+		/**
+		 * Responses waiting to be sent, in order; null means close the stream.
+		 * Synchronized on this object.
+		 */
+		private LinkedList<WaitResponse> queued = new LinkedList<WaitResponse>();
+
+		/**
+		 * Constructs and adds to the subscriber list. The channel must be
+		 * locked.
+		 *
+		 * @param app Main app object
+		 * @param connection Connection for event stream
+		 * @param user User name
+		 * @param trusted True if user is trusted
+		 */
+		private Subscriber(Hawthorn app, Connection connection, String user,
+			boolean trusted)
+		{
+			super(app);
+			this.connection = connection;
+			this.user = user;
+			this.trusted = trusted;
+
+			heartbeat = getEventHandler().addTimedEvent(
+				System.currentTimeMillis() + STREAM_HEARTBEAT_TIME, this);
+			subscribers.add(this);
+
+			// And add it to the per-user index
+			LinkedList<Subscriber> existing = subscribersByUser.get(user);
+			if(existing == null)
+			{
+				existing = new LinkedList<Subscriber>();
+				subscribersByUser.put(user, existing);
+			}
+			existing.add(this);
+
+			// Unsubscribe as soon as the connection closes
+			connection.setCloseEvent(this);
+		}
+
+		@Override
+		/*
+		 * Called when it's time for a heartbeat, or when the connection closes.
+		 */
+		public void handle() throws OperationException
 		{
 			synchronized (Channel.this)
 			{
-				// If item wasn't in list anyway, we've already responded, so don't
-				// do anything else
-				if(listeners.remove(timeoutId) == null)
+				if(!subscribers.contains(this))
 				{
 					return;
 				}
-				// Remove from by-user index
-				LinkedList<Listener> byUser = listenersByUser.get(user);
-				if(byUser != null) // It should not be null, but let's play safe
+				if(connection.isClosed())
 				{
-					byUser.remove(this);
-					if(byUser.isEmpty())
+					remove();
+
+					// Without any other streams, the user times out as usual
+					UserInfo info = present.get(user);
+					if(info != null && !subscribersByUser.containsKey(user))
 					{
-						listenersByUser.remove(user);
+						info.access();
 					}
+					return;
 				}
-				// Update access time to current in user info
+
+				// Keep user present until the next heartbeat (unless they have left)
+				long now = System.currentTimeMillis();
 				UserInfo info = present.get(user);
-				info.access();
+				if(info != null)
+				{
+					info.access(now + STREAM_HEARTBEAT_TIME);
+				}
+				heartbeat = getEventHandler().addTimedEvent(
+					now + STREAM_HEARTBEAT_TIME, this);
 			}
 
-			// Remove event
-			getEventHandler().removeTimedEvent(timeoutId);
+			synchronized(this)
+			{
+				connection.sendStream(STREAM_HEARTBEAT);
+			}
+		}
 
-			// Send response
-			sendWaitResponse(connection, id, messages[messages.length - 1].getTime(),
-				messages, trusted);
+		/**
+		 * Queues new messages. The channel must be locked, so that messages
+		 * are queued in the same order as the channel history.
+		 * @param response Response containing new messages
+		 */
+		private synchronized void queue(WaitResponse response)
+		{
+			queued.add(response);
+		}
+
+		/**
+		 * Removes from the subscriber list and index, and cancels the heartbeat.
+		 * The channel must be locked.
+		 */
+		private void remove()
+		{
+			subscribers.remove(this);
+			LinkedList<Subscriber> byUser = subscribersByUser.get(user);
+			if(byUser != null)
+			{
+				byUser.remove(this);
+				if(byUser.isEmpty())
+				{
+					subscribersByUser.remove(user);
+				}
+			}
+			getEventHandler().removeTimedEvent(heartbeat);
+		}
+
+		/**
+		 * Removes from the subscriber list and closes the stream once anything
+		 * already queued has been sent. The channel must be locked.
+		 */
+		private void end()
+		{
+			remove();
+			queue(null);
+			getEventHandler().addEvent(
+				new StreamFanOutEvent(new Subscriber[] { this }, 0, 1));
+		}
+
+		/**
+		 * Sends queued messages, without the channel locked.
+		 */
+		private synchronized void sendQueued()
+		{
+			while(!queued.isEmpty())
+			{
+				WaitResponse response = queued.removeFirst();
+				if(response == null)
+				{
+					connection.close();
+				}
+				else if(!response.sendStream(connection, trusted))
+				{
+					// Connection has closed; the close event removes this subscriber
+					queued.clear();
+				}
+			}
+		}
+	}
+
+	/** Sends queued messages to a batch of event streams. */
+	private class StreamFanOutEvent extends Event
+	{
+		private Subscriber[] subscribers;
+		private int start, end;
+
+		/**
+		 * @param subscribers Subscribers
+		 * @param start First index in array to send to
+		 * @param end Index after last one to send to
+		 */
+		private StreamFanOutEvent(Subscriber[] subscribers, int start, int end)
+		{
+			super(Channel.this.getApp());
+			this.subscribers = subscribers;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		public void handle() throws OperationException
+		{
+			for(int i = start; i < end; i++)
+			{
+				subscribers[i].sendQueued();
+			}
+		}
+	}
+
+	/**
+	 * Time at which a user might time out, or a ban expires. Presence deadlines
+	 * are not moved when the user accesses the channel again; instead, the user
+	 * is checked when the deadline arrives and a new one is added if needed.
+	 */
+	private static class Deadline implements Comparable<Deadline>
+	{
+		private long time;
+		private String user;
+		private UserInfo info;
+
+		/**
+		 * @param time Time of deadline
+		 * @param user User name
+		 * @param info User info for presence deadline; null for ban expiry
+		 */
+		private Deadline(long time, String user, UserInfo info)
+		{
+			this.time = time;
+			this.user = user;
+			this.info = info;
+		}
+
+		public int compareTo(Deadline other)
+		{
+			return time < other.time ? -1 : time > other.time ? 1 : 0;
 		}
 	}
 
@@ -183,7 +534,8 @@ public class Channel extends HawthornObject
 	{
 		private boolean thisServer;
 
-		private long lastAccess;
+		/** Last access time; volatile because polls update it without locking */
+		private volatile long lastAccess;
 
 		/**
 		 * @param thisServer True if user is connected to this server
@@ -224,6 +576,12 @@ public class Channel extends HawthornObject
 				&& lastAccess + PRESENT_TIMEOUT < System.currentTimeMillis();
 		}
 
+		/** @return First time at which timedOut() could become true */
+		long getTimeoutTime()
+		{
+			return lastAccess + PRESENT_TIMEOUT + 1;
+		}
+
 		/**
 		 * Obtains a leave message for this user
 		 * @param timeout True for a timeout message
@@ -245,6 +603,9 @@ public class Channel extends HawthornObject
 	{
 		super(app);
 		this.name = name;
+
+		// Check back later in case nothing happens in the channel
+		requestCleanup(System.currentTimeMillis() + EMPTY_CHECK_DELAY);
 	}
 
 	/** @return Channel name */
@@ -254,51 +615,164 @@ public class Channel extends HawthornObject
 	}
 
 	/**
-	 * Obtains a unique identifier within this channel (userid + unique id)
-	 * for a UniqueMessage.
+	 * Records the unique identifier (userid + unique id) of a message.
 	 * @param m Message
-	 * @return Unique identifier
+	 * @return True if recorded, false if this message was already in the channel
+	 */
+	private boolean addUnique(UniqueMessage m)
+	{
+		long unique = m.getUniqueNumber();
+		if(unique == UniqueMessage.NOT_NUMERIC)
+		{
+			return otherUniqueMessages.add(m.getUser() + ":" + m.getUnique());
+		}
+		return uniqueMessages.add(m.getUser(), unique);
+	}
+
+	/**
+	 * Forgets the unique identifier of a message.
+	 * @param m Message
+	 */
+	private void removeUnique(UniqueMessage m)
+	{
+		long unique = m.getUniqueNumber();
+		if(unique == UniqueMessage.NOT_NUMERIC)
+		{
+			otherUniqueMessages.remove(m.getUser() + ":" + m.getUnique());
+		}
+		else
+		{
+			uniqueMessages.remove(m.getUser(), unique);
+		}
+	}
+
+	/**
+	 * Makes sure that cleanup will be called no later than the given time. The
+	 * channel must be locked (or not yet available to others).
+	 * @param time Time
+	 */
+	private void requestCleanup(long time)
+	{
+		if(cleanupTimer != null)
+		{
+			if(cleanupTime <= time)
+			{
+				return;
+			}
+			getChannels().cancelCleanup(cleanupTimer);
+		}
+		cleanupTime = time;
+		cleanupTimer = getChannels().scheduleCleanup(this, time);
+	}
+
+	/**
+	 * Adds a user to the present list. The channel must be locked.
+	 * @param info User info
+	 */
+	private void addPresent(UserInfo info)
+	{
+		present.put(info.getUser(), info);
+		presentChanged = true;
+		if(info.thisServer)
+		{
+			Deadline deadline =
+				new Deadline(info.getTimeoutTime(), info.getUser(), info);
+			deadlines.add(deadline);
+			requestCleanup(deadline.time);
+		}
+	}
+
+	/**
+	 * Publishes a new snapshot for methods that read without locking. The
+	 * channel must be locked, and this must be called after changing the
+	 * history, present users, or bans.
 	 */
-	private static String getUniqueKey(UniqueMessage m)
+	private void publish()
 	{
-		return m.getUser() + ":" + m.getUnique();
+		Snapshot old = snapshot;
+		MessageHistory.View view = messages.getView();
+		if(view == old.messages && !presentChanged && !bansChanged)
+		{
+			return;
+		}
+		Map<String, UserInfo> newPresent = old.present;
+		Name[] newNames = old.names;
+		if(presentChanged)
+		{
+			newPresent = new HashMap<String, UserInfo>(present);
+			newNames = present.values().toArray(new Name[present.size()]);
+			presentChanged = false;
+		}
+		Set<String> newBans = old.bans;
+		if(bansChanged)
+		{
+			newBans = new HashSet<String>(bans.keySet());
+			bansChanged = false;
+		}
+		snapshot = new Snapshot(view, newPresent, newNames, newBans);
 	}
 
 	/**
-	 * Cleans up old messsages and sends leave message for timed-out users.
-	 * Called every few seconds.
+	 * Cleans up old messsages, sends leave message for timed-out users, and
+	 * removes expired bans. Called when the time requested with
+	 * {@link #requestCleanup(long)} arrives, so that channels with nothing to
+	 * do don't need to be checked.
 	 * @see Channels
 	 * @return True if there are no messages in this channel and nobody is
-	 *   listening so it should be thrown away
+	 *   listening, so it has been thrown away
 	 */
 	synchronized boolean cleanup()
 	{
+		// The timer that called this has gone
+		cleanupTimer = null;
+		if(discarded)
+		{
+			return true;
+		}
+
 		// Remove old messages
 		long now = System.currentTimeMillis();
 		long then = now - getConfig().getHistoryTime();
-		for(Iterator<Message> i = messages.iterator(); i.hasNext();)
+		while(!messages.isEmpty() && messages.getFirst().getTime() <= then)
 		{
-			Message m = i.next();
-			if(m.getTime() > then)
+			Message m = messages.removeFirst();
+			if(m instanceof UniqueMessage)
 			{
-				break;
+				removeUnique((UniqueMessage)m);
 			}
-			if(m instanceof SayMessage)
-			{
-				uniqueMessages.remove(getUniqueKey((SayMessage)m));
-			}
-			i.remove();
 		}
 
-		// Remove users in present list who have timed out
+		// Check deadlines that have arrived
 		LinkedList<UserInfo> timedOut = new LinkedList<UserInfo>();
-		for(UserInfo info : present.values())
+		while(!deadlines.isEmpty() && deadlines.peek().time <= now)
 		{
-			if(info.timedOut())
+			Deadline deadline = deadlines.poll();
+			if(deadline.info == null)
 			{
-				timedOut.add(info);
+				// Remove ban if it has expired (it may have been replaced)
+				Long until = bans.get(deadline.user);
+				if(until != null && until < now)
+				{
+					bans.remove(deadline.user);
+					bansChanged = true;
+				}
+			}
+			else if(present.get(deadline.user) == deadline.info)
+			{
+				// User is still present; remove if timed out, otherwise check
+				// again at the new time
+				if(deadline.info.timedOut())
+				{
+					timedOut.add(deadline.info);
+				}
+				else
+				{
+					deadline.time = deadline.info.getTimeoutTime();
+					deadlines.add(deadline);
+				}
 			}
 		}
+		publish();
 		for(UserInfo info : timedOut)
 		{
 			LeaveMessage leave = info.newLeaveMessage(true);
@@ -306,17 +780,28 @@ public class Channel extends HawthornObject
 			message(leave, false);
 		}
 
-		// Remove old bans
-		for(Iterator<Long> i = bans.values().iterator(); i.hasNext();)
+		// If there are no messages and listeners, OK to delete this channel.
+		// This is done while locked so that nothing can be added to it.
+		if(messages.isEmpty() && listeners.isEmpty() && subscribers.isEmpty()
+			&& bans.isEmpty())
 		{
-			if(i.next() < now)
-			{
-				i.remove();
-			}
+			discarded = true;
+			getChannels().remove(this);
+			return true;
 		}
 
-		// If there are no messages and listeners, OK to delete this channel
-		return messages.isEmpty() && listeners.isEmpty() && bans.isEmpty();
+		// Otherwise arrange to be called again when something is due
+		long next = now + EMPTY_CHECK_DELAY;
+		if(!messages.isEmpty())
+		{
+			next = messages.getFirst().getTime() + getConfig().getHistoryTime();
+		}
+		if(!deadlines.isEmpty())
+		{
+			next = Math.min(next, deadlines.peek().time);
+		}
+		requestCleanup(next);
+		return false;
 	}
 
 	/**
@@ -327,6 +812,12 @@ public class Channel extends HawthornObject
 	 */
 	public synchronized void message(Message m, boolean remote)
 	{
+		if(discarded)
+		{
+			getChannels().get(name).message(m, remote);
+			return;
+		}
+
 		// Message array
 		Message[] newMessages =
 		{
@@ -336,7 +827,7 @@ public class Channel extends HawthornObject
 		// Handle presence information
 		if(m instanceof SayMessage)
 		{
-			if(!uniqueMessages.add(getUniqueKey((SayMessage)m)))
+			if(!addUnique((SayMessage)m))
 			{
 				// Message is already in channel, so don't add it again
 				return;
@@ -358,7 +849,7 @@ public class Channel extends HawthornObject
 				};
 
 				// Add to presence list
-				present.put(m.getUser(), new UserInfo(!remote, m.getIP(), m.getUser(),
+				addPresent(new UserInfo(!remote, m.getIP(), m.getUser(),
 					m.getDisplayName(), m.getExtra()));
 			}
 			else
@@ -373,7 +864,7 @@ public class Channel extends HawthornObject
 			if(existing == null)
 			{
 				// Add to presence list
-				present.put(m.getUser(), new UserInfo(!remote, m.getIP(), m.getUser(),
+				addPresent(new UserInfo(!remote, m.getIP(), m.getUser(),
 					m.getDisplayName(), m.getExtra()));
 			}
 			else
@@ -390,13 +881,14 @@ public class Channel extends HawthornObject
 				// They weren't there? Then don't pass on message
 				return;
 			}
+			presentChanged = true;
 
 			// Note the listeners will automatically be closed by sending this
 			// leave message.
 		}
 		else if(m instanceof BanMessage)
 		{
-			if(!uniqueMessages.add(getUniqueKey((BanMessage)m)))
+			if(!addUnique((BanMessage)m))
 			{
 				// Message is already in channel, so don't add it again
 				return;
@@ -408,6 +900,8 @@ public class Channel extends HawthornObject
 			UserInfo target = present.remove(ban.getBan());
 			if(target != null)
 			{
+				presentChanged = true;
+
 				// User was in channel; generate LeaveMessage
 				newMessages = new Message[]
         {
@@ -417,6 +911,10 @@ public class Channel extends HawthornObject
 
 			// Remember ban information
 			bans.put(ban.getBan(), ban.getUntil());
+			bansChanged = true;
+			Deadline expiry = new Deadline(ban.getUntil() + 1, ban.getBan(), null);
+			deadlines.add(expiry);
+			requestCleanup(expiry.time);
 
 			// Log ban in system log for auditing
 			getLogger().log(Logger.SYSTEM_LOG, Level.NORMAL,
@@ -425,19 +923,46 @@ public class Channel extends HawthornObject
 		}
 
 		internalMessage(newMessages);
+		publish();
+
+		// Banned user's event streams are closed after receiving the ban
+		if(m instanceof BanMessage)
+		{
+			LinkedList<Subscriber> banned =
+				subscribersByUser.get(((BanMessage)m).getBan());
+			if(banned != null)
+			{
+				for(Subscriber subscriber : banned.toArray(
+					new Subscriber[banned.size()]))
+				{
+					subscriber.end();
+				}
+			}
+		}
 	}
 
-	private synchronized void internalMessage(Message[] newMessages)
+	/**
+	 * Adds messages to the channel and passes them to listeners. The channel
+	 * must be locked.
+	 * @param newMessages Messages
+	 */
+	private void internalMessage(Message[] newMessages)
 	{
+		version++;
 		for(Message m : newMessages)
 		{
-			// Ensure that no two messages have the same time
-			if(m.getTime() == lastMessage)
+			// Ensure that message times are unique and in order, so history can be
+			// searched by time
+			if(m.getTime() <= lastMessage)
 			{
 				m.setTime(lastMessage + 1);
 			}
 
-			// Add message
+			// Add message (if it's the only one, make sure it gets expired)
+			if(messages.isEmpty())
+			{
+				requestCleanup(m.getTime() + getConfig().getHistoryTime());
+			}
 			messages.add(m);
 			lastMessage = m.getTime();
 
@@ -448,11 +973,45 @@ public class Channel extends HawthornObject
 			}
 		}
 
-		// Pass message(s) to all listeners
-		while(!listeners.isEmpty())
+		// Take all the listeners, then pass message(s) to them on event threads
+		// once the channel is no longer locked. Large numbers of listeners are
+		// split into batches so that several threads can send at once.
+		if(listeners.isEmpty() && subscribers.isEmpty())
+		{
+			return;
+		}
+		WaitResponse response = new WaitResponse(
+			newMessages[newMessages.length - 1].getTime(), newMessages);
+		if(!listeners.isEmpty())
+		{
+			Listener[] waiting = listeners.toArray(new Listener[listeners.size()]);
+			listeners.clear();
+			for(Listener listener : waiting)
+			{
+				listener.claim();
+			}
+			for(int start = 0; start < waiting.length; start += FAN_OUT_BATCH)
+			{
+				getEventHandler().addEvent(new FanOutEvent(waiting, start,
+					Math.min(start + FAN_OUT_BATCH, waiting.length), response));
+			}
+		}
+
+		// Event streams stay subscribed. Messages are queued on each one now, so
+		// that they are sent in order even if the events run out of order.
+		if(!subscribers.isEmpty())
 		{
-			// This sends the message(s) and removes the listener
-			listeners.values().iterator().next().newMessages(newMessages);
+			Subscriber[] streams =
+				subscribers.toArray(new Subscriber[subscribers.size()]);
+			for(Subscriber subscriber : streams)
+			{
+				subscriber.queue(response);
+			}
+			for(int start = 0; start < streams.length; start += FAN_OUT_BATCH)
+			{
+				getEventHandler().addEvent(new StreamFanOutEvent(streams, start,
+					Math.min(start + FAN_OUT_BATCH, streams.length)));
+			}
 		}
 	}
 
@@ -460,9 +1019,25 @@ public class Channel extends HawthornObject
 	 * @return A timestamp that can safely be used for requesting future messages
 	 *   if there are no recent ones
 	 */
-	public synchronized long getPreviousTimestamp()
+	public long getPreviousTimestamp()
 	{
-		return System.currentTimeMillis()-1;
+		// Message times can run ahead of the clock when several arrive at once
+		return Math.max(System.currentTimeMillis()-1, lastMessage);
+	}
+
+	/**
+	 * @return Version number that changes whenever messages are added or the
+	 *   present users change (old messages expiring doesn't count)
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	/** @return Cache of responses to recent requests for this channel */
+	RecentCache getRecentCache()
+	{
+		return recentCache;
 	}
 
 	/**
@@ -471,7 +1046,7 @@ public class Channel extends HawthornObject
 	 * @param sayOnly If true, returns only standard SAY messages (not JOIN etc)
 	 * @return Array of messages that match the criteria
 	 */
-	public synchronized Message[] recent(int maxAge, int maxNumber,
+	public Message[] recent(int maxAge, int maxNumber,
 		boolean sayOnly)
 	{
 		long then = System.currentTimeMillis() - maxAge;
@@ -486,38 +1061,10 @@ public class Channel extends HawthornObject
 	 * @param sayOnly If true, returns only standard SAY messages (not JOIN etc)
 	 * @return Array of messages, empty if none
 	 */
-	public synchronized Message[] getSince(long then, int maxNumber,
+	public Message[] getSince(long then, int maxNumber,
 		boolean sayOnly)
 	{
-		int count = 0;
-		ListIterator<Message> iterator = messages.listIterator(messages.size());
-		while(iterator.hasPrevious() && (maxNumber == ANY || count < maxNumber))
-		{
-			Message m = iterator.previous();
-			if(m.getTime() <= then)
-			{
-				iterator.next();
-				break;
-			}
-			if(sayOnly && !(m instanceof SayMessage))
-			{
-				continue;
-			}
-			count++;
-		}
-
-		Message[] result = new Message[count];
-		for(int i = 0; i < count; )
-		{
-			Message m = iterator.next();
-			if(sayOnly && !(m instanceof SayMessage))
-			{
-				continue;
-			}
-			result[i++] = m;
-		}
-
-		return result;
+		return snapshot.messages.getSince(then, maxNumber, sayOnly);
 	}
 
 	/**
@@ -528,30 +1075,45 @@ public class Channel extends HawthornObject
 	 * @param extra Extra user data
 	 * @return Delay in milliseconds that the user should wait for new messages
 	 */
-	public synchronized long poll(String ip, String user, String displayName,
+	public long poll(String ip, String user, String displayName,
 		String extra)
 	{
-		long now = System.currentTimeMillis();
-
-		// User is now present in channel
-		UserInfo existing = present.get(user);
+		// A user who is already present only needs the access time updating,
+		// which doesn't need the channel to be locked
+		Snapshot current = snapshot;
+		UserInfo existing = discarded ? null : current.present.get(user);
 		if(existing == null)
 		{
-			// Send a join message to local and remote servers
-			JoinMessage join =
-				new JoinMessage(now + 1, getName(), ip, user,
-					getApp().getMaskedUser(user), displayName, extra);
-			getApp().getOtherServers().sendMessage(join);
-			message(join, false);
-			existing = present.get(user);
+			synchronized (this)
+			{
+				if(discarded)
+				{
+					return getChannels().get(name).poll(ip, user, displayName, extra);
+				}
+
+				// User is now present in channel
+				existing = present.get(user);
+				if(existing == null)
+				{
+					// Send a join message to local and remote servers
+					JoinMessage join =
+						new JoinMessage(System.currentTimeMillis() + 1, getName(), ip, user,
+							getApp().getMaskedUser(user), displayName, extra);
+					getApp().getOtherServers().sendMessage(join);
+					message(join, false);
+					existing = present.get(user);
+				}
+				current = snapshot;
+			}
 		}
 
 		// Work out time we recommend polling again at
+		long now = System.currentTimeMillis();
 		int minPollTime = getConfig().getMinPollTime(),
 			maxPollTime = getConfig().getMaxPollTime(),
 			pollScaleTime = getConfig().getPollScaleTime();
 		int delay;
-		if(messages.isEmpty())
+		if(current.messages.isEmpty())
 		{
 			// If there are no messages at all, use the maximum delay
 			delay = maxPollTime;
@@ -559,7 +1121,7 @@ public class Channel extends HawthornObject
 		else
 		{
 			// Use a delay between min and max, linearly scaled up to pollScaleTime
-			int sinceLast = (int)(now - messages.getLast().getTime());
+			int sinceLast = (int)(now - current.messages.getLast().getTime());
 			sinceLast = Math.min(sinceLast, pollScaleTime);
 			delay = minPollTime +
 				((maxPollTime - minPollTime) * sinceLast) / pollScaleTime;
@@ -577,23 +1139,16 @@ public class Channel extends HawthornObject
 	 * @return Names of channel users (note: selection is arbitrary if there are
 	 *         more than maxNames)
 	 */
-	public synchronized Name[] getNames(int maxNames)
+	public Name[] getNames(int maxNames)
 	{
-		Name[] result;
-		if(present.size() < maxNames || maxNames == ANY)
+		Name[] names = snapshot.names;
+		int count = names.length;
+		if(maxNames != ANY && count > maxNames)
 		{
-			result = new Name[present.size()];
+			count = maxNames;
 		}
-		else
-		{
-			result = new Name[maxNames];
-		}
-		Iterator<UserInfo> iterator = present.values().iterator();
-		for(int i = 0; i < result.length; i++)
-		{
-			result[i] = iterator.next();
-		}
-
+		Name[] result = new Name[count];
+		System.arraycopy(names, 0, result, 0, count);
 		return result;
 	}
 
@@ -601,9 +1156,9 @@ public class Channel extends HawthornObject
 	 * @param user User name
 	 * @return True if user is banned
 	 */
-	public synchronized boolean isBanned(String user)
+	public boolean isBanned(String user)
 	{
-		return bans.containsKey(user);
+		return snapshot.bans.contains(user);
 	}
 
 	/**
@@ -620,80 +1175,263 @@ public class Channel extends HawthornObject
 	 * @param trusted True if user is trusted to see user names etc
 	 * @throws IllegalArgumentException If you specify too many parameters
 	 */
-	public synchronized void wait(Connection connection, String user,
+	public void wait(Connection connection, String user,
 		String displayName, String extra, String id, long lastTime, boolean trusted)
 		throws IllegalArgumentException
 	{
-		// Looking for messages since the specified time
-		ListIterator<Message> iterator = messages.listIterator(messages.size());
-		int count = 0;
-		while(iterator.hasPrevious())
+		Message[] result;
+		synchronized (this)
 		{
-			Message m = iterator.previous();
-			if(m.getTime() <= lastTime)
+			if(discarded)
 			{
-				iterator.next();
-				break;
+				getChannels().get(name).wait(connection, user, displayName, extra, id,
+					lastTime, trusted);
+				return;
 			}
-			count++;
-		}
 
-		if(count > 0)
-		{
-			Message[] result = new Message[count];
-			for(int i = 0; i < count; i++)
+			// Looking for messages since the specified time
+			result = messages.getView().getSince(lastTime, ANY, false);
+			if(result.length == 0)
 			{
-				result[i] = iterator.next();
+				// Keep waiting for new messages
+				new Listener(getApp(), connection, user, trusted, id, lastTime);
+
+				// User is now present in channel
+				UserInfo existing = present.get(user);
+				if(existing == null)
+				{
+					String ip = connection.toString();
+
+					// Send a join message to local and remote servers
+					JoinMessage join =
+						new JoinMessage(System.currentTimeMillis() + 1, getName(), ip, user,
+							getApp().getMaskedUser(user), displayName, extra);
+					getApp().getOtherServers().sendMessage(join);
+					message(join, false);
+					existing=present.get(user);
+				}
+
+				// Set it not to timeout until the wait expires
+				existing.access(System.currentTimeMillis()+WAIT_TIME);
+				return;
 			}
-			sendWaitResponse(connection, id, result[result.length - 1]
-				.getTime(), result, trusted);
-			// When it responds straight away, we don't need for the user to
-			// be present, because this is only equivalent to recent anyhow.
-			// If they're really in the channel they will send another request
-			// immediately.
-			return;
 		}
 
-		// Keep waiting for new messages
-		new Listener(getApp(), connection, user, trusted, id, lastTime);
+		// There are messages already, so respond straight away (now that the
+		// channel is unlocked). We don't need for the user to be present, because
+		// this is only equivalent to recent anyhow. If they're really in the
+		// channel they will send another request immediately.
+		new WaitResponse(result[result.length - 1].getTime(), result).send(
+			connection, id, trusted);
+	}
 
-		// User is now present in channel
-		UserInfo existing = present.get(user);
-		if(existing == null)
+	/**
+	 * Subscribes an event stream to this channel. Messages after the given
+	 * time are sent straight away, then all new messages as they arrive. This
+	 * marks a user as joined to the channel, for as long as the stream stays
+	 * open. The stream header must already have been sent.
+	 *
+	 * @param connection Connection for event stream
+	 * @param user User name
+	 * @param displayName User display name
+	 * @param extra Extra user data
+	 * @param lastTime Time of last message (receives any messages with time
+	 *        greater than this)
+	 * @param trusted True if user is trusted to see user names etc
+	 */
+	public void stream(Connection connection, String user,
+		String displayName, String extra, long lastTime, boolean trusted)
+	{
+		Subscriber subscriber;
+		synchronized (this)
 		{
-			String ip = connection.toString();
+			if(discarded)
+			{
+				getChannels().get(name).stream(connection, user, displayName, extra,
+					lastTime, trusted);
+				return;
+			}
+
+			// Subscribe first, then queue messages since the specified time; both
+			// happen while locked, so nothing can be missed or sent twice
+			subscriber = new Subscriber(getApp(), connection, user, trusted);
+			Message[] result = messages.getView().getSince(lastTime, ANY, false);
+			if(result.length > 0)
+			{
+				subscriber.queue(new WaitResponse(result[result.length - 1].getTime(),
+					result));
+			}
 
-			// Send a join message to local and remote servers
-			JoinMessage join =
-				new JoinMessage(System.currentTimeMillis() + 1, getName(), ip, user,
-					getApp().getMaskedUser(user), displayName, extra);
-			getApp().getOtherServers().sendMessage(join);
-			message(join, false);
-			existing=present.get(user);
+			// User is now present in channel
+			UserInfo existing = present.get(user);
+			if(existing == null)
+			{
+				String ip = connection.toString();
+
+				// Send a join message to local and remote servers
+				JoinMessage join =
+					new JoinMessage(System.currentTimeMillis() + 1, getName(), ip, user,
+						getApp().getMaskedUser(user), displayName, extra);
+				getApp().getOtherServers().sendMessage(join);
+				message(join, false);
+				existing = present.get(user);
+			}
+
+			// Set it not to timeout until the next heartbeat
+			existing.access(System.currentTimeMillis() + STREAM_HEARTBEAT_TIME);
 		}
 
-		// Set it not to timeout until the wait expires
-		existing.access(System.currentTimeMillis()+WAIT_TIME);
+		subscriber.sendQueued();
 	}
 
-	private void sendWaitResponse(Connection connection, String id,
-		long lastTime, Message[] messages, boolean trusted)
+	/**
+	 * Response to wait requests. The JavaScript for the messages is built
+	 * (once for trusted users and once for others) the first time it's needed,
+	 * then shared by every listener that receives the same messages; only the
+	 * ID at the start differs.
+	 */
+	private static class WaitResponse
 	{
-		StringBuilder output = new StringBuilder();
-		output.append("hawthorn.waitComplete(");
-		output.append(id);
-		output.append(',');
-		output.append(lastTime);
-		output.append(",[");
-		for(int i = 0; i < messages.length; i++)
+		private long lastTime;
+		private Message[] messages;
+		private byte[] trustedData, untrustedData, trustedStream, untrustedStream;
+		private Gzip.Shared trustedGzip, untrustedGzip;
+
+		/**
+		 * @param lastTime Time of last message (or time to use if there are none)
+		 * @param messages Messages to send
+		 */
+		private WaitResponse(long lastTime, Message[] messages)
+		{
+			this.lastTime = lastTime;
+			this.messages = messages;
+		}
+
+		/**
+		 * Sends the response.
+		 * @param connection Connection
+		 * @param id ID string
+		 * @param trusted True if user is trusted
+		 */
+		void send(Connection connection, String id, boolean trusted)
+		{
+			byte[] prefix = HttpServer.getUTF8("hawthorn.waitComplete(" + id);
+			byte[] data = getData(trusted);
+			if(connection.isGzipped(prefix.length + data.length))
+			{
+				connection.sendGzipped(Gzip.compress(prefix, getGzipData(trusted)));
+			}
+			else
+			{
+				connection.send(prefix, data);
+			}
+		}
+
+		/**
+		 * Sends the messages as an event on an event stream. The event data is
+		 * a JSON array of messages; the event ID is the time of the last
+		 * message, so that clients can resume from there.
+		 * @param connection Connection
+		 * @param trusted True if user is trusted
+		 * @return False if the connection has closed
+		 */
+		boolean sendStream(Connection connection, boolean trusted)
+		{
+			return connection.sendStream(getStreamData(trusted));
+		}
+
+		/**
+		 * @param trusted True if user is trusted
+		 * @return Event stream data in UTF-8
+		 */
+		private synchronized byte[] getStreamData(boolean trusted)
 		{
-			if(i != 0)
+			byte[] data = trusted ? trustedStream : untrustedStream;
+			if(data == null)
 			{
+				// Data is a JSON array of messages, which never contains line breaks
+				// so it fits on one data line
+				StringBuilder output = new StringBuilder();
+				output.append("id: ");
+				output.append(lastTime);
+				output.append("\ndata: [");
+				for(int i = 0; i < messages.length; i++)
+				{
+					if(i != 0)
+					{
+						output.append(',');
+					}
+					output.append(messages[i].getJSONFormat(trusted));
+				}
+				output.append("]\n\n");
+				data = HttpServer.getUTF8(output.toString());
+				if(trusted)
+				{
+					trustedStream = data;
+				}
+				else
+				{
+					untrustedStream = data;
+				}
+			}
+			return data;
+		}
+
+		/**
+		 * @param trusted True if user is trusted
+		 * @return Everything after the ID, compressed once for all listeners
+		 */
+		private synchronized Gzip.Shared getGzipData(boolean trusted)
+		{
+			Gzip.Shared gzip = trusted ? trustedGzip : untrustedGzip;
+			if(gzip == null)
+			{
+				gzip = Gzip.compressShared(getData(trusted));
+				if(trusted)
+				{
+					trustedGzip = gzip;
+				}
+				else
+				{
+					untrustedGzip = gzip;
+				}
+			}
+			return gzip;
+		}
+
+		/**
+		 * @param trusted True if user is trusted
+		 * @return Everything after the ID, in UTF-8
+		 */
+		private synchronized byte[] getData(boolean trusted)
+		{
+			byte[] data = trusted ? trustedData : untrustedData;
+			if(data == null)
+			{
+				StringBuilder output = new StringBuilder();
 				output.append(',');
+				output.append(lastTime);
+				output.append(",[");
+				for(int i = 0; i < messages.length; i++)
+				{
+					if(i != 0)
+					{
+						output.append(',');
+					}
+					output.append(messages[i].getJSFormat(trusted));
+				}
+				output.append("]);");
+				data = HttpServer.getUTF8(output.toString());
+				if(trusted)
+				{
+					trustedData = data;
+				}
+				else
+				{
+					untrustedData = data;
+				}
 			}
-			output.append(messages[i].getJSFormat(trusted));
+			return data;
 		}
-		output.append("]);");
-		connection.send(output.toString());
 	}
 }
@@ -19,17 +19,28 @@ along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
 */
 package com.leafdigital.hawthorn.server;
 
-import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.leafdigital.hawthorn.util.TimerWheel;
 
 /** List of current channels. */
 public class Channels extends HawthornObject
 {
-	private final static int CHANNEL_DUMP_FREQUENCY = 5 * 1000;
+	/** How often the dump thread checks for channels that need cleanup */
+	private final static int CHANNEL_DUMP_FREQUENCY = 1000;
+	/** Number of slots in cleanup timer wheel */
+	private final static int CLEANUP_SLOTS = 1024;
 
 	private final static String STATISTIC_CHANNEL_COUNT = "CHANNEL_COUNT";
 
 	/** Stores data about each available channel. */
-	private HashMap<String, Channel> channels = new HashMap<String, Channel>();
+	private ConcurrentHashMap<String, Channel> channels =
+		new ConcurrentHashMap<String, Channel>();
+
+	/** Channels that need cleanup at a particular time */
+	private TimerWheel<Channel> cleanups = new TimerWheel<Channel>(
+		CHANNEL_DUMP_FREQUENCY, CLEANUP_SLOTS, System.currentTimeMillis());
 
 	private Object channelDumpSynch = new Object();
 	private boolean close, closed;
@@ -44,10 +55,7 @@ public class Channels extends HawthornObject
 			{
 				public int getValue()
 				{
-					synchronized (channels)
-					{
-						return channels.size();
-					}
+					return channels.size();
 				}
 			});
 
@@ -62,15 +70,53 @@ public class Channels extends HawthornObject
 	 */
 	public Channel get(String name)
 	{
-		synchronized (channels)
+		Channel c = channels.get(name);
+		if(c == null)
 		{
-			Channel c = channels.get(name);
+			// If another thread creates it at the same time, use theirs
+			Channel created = new Channel(getApp(), name);
+			c = channels.putIfAbsent(name, created);
 			if(c == null)
 			{
-				c = new Channel(getApp(), name);
-				channels.put(name, c);
+				c = created;
 			}
-			return c;
+		}
+		return c;
+	}
+
+	/**
+	 * Removes a channel from the list. Called by the channel itself (with its
+	 * lock held) when it is discarded.
+	 * @param channel Channel to remove
+	 */
+	void remove(Channel channel)
+	{
+		channels.remove(channel.getName(), channel);
+	}
+
+	/**
+	 * Arranges for a channel to be cleaned up at a particular time.
+	 * @param channel Channel
+	 * @param time Time
+	 * @return Timer handle
+	 */
+	TimerWheel.Timer<Channel> scheduleCleanup(Channel channel, long time)
+	{
+		synchronized (cleanups)
+		{
+			return cleanups.add(time, channel);
+		}
+	}
+
+	/**
+	 * Cancels a cleanup (does nothing if it already happened).
+	 * @param timer Timer handle
+	 */
+	void cancelCleanup(TimerWheel.Timer<Channel> timer)
+	{
+		synchronized (cleanups)
+		{
+			cleanups.cancel(timer);
 		}
 	}
 
@@ -127,26 +173,17 @@ public class Channels extends HawthornObject
 					}
 				}
 
-				// Get channels (then leave channel synch)
-				Channel[] allChannels;
-				synchronized (channels)
+				// Get channels that need cleanup now
+				LinkedList<Channel> due = new LinkedList<Channel>();
+				synchronized (cleanups)
 				{
-					allChannels =
-						channels.values().toArray(new Channel[channels.values().size()]);
+					cleanups.expire(System.currentTimeMillis(), due);
 				}
 
-				// Clean up all channels
-				int count = allChannels.length;
-				for(Channel channel : allChannels)
+				// Clean them up (this removes any that are no longer needed)
+				for(Channel channel : due)
 				{
-					if(channel.cleanup())
-					{
-						synchronized (channels)
-						{
-							channels.remove(channel.getName());
-							count--;
-						}
-					}
+					channel.cleanup();
 				}
 			}
 		}
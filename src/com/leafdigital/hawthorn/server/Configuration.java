@@ -41,6 +41,8 @@ public class Configuration
 	private boolean logChat = true;
 	private long historyTime = 15*60*1000;
 	private int eventThreads = Runtime.getRuntime().availableProcessors() + 2;
+	private boolean virtualEventThreads = false;
+	private int selectorThreads = 1;
 	private int minPollTime = 2000, maxPollTime = 15000, pollScaleTime = 60000;
 	private ServerInfo[] otherServers;
 	private ServerInfo thisServer;
@@ -49,6 +51,7 @@ public class Configuration
 	private static long testKeyTime = System.currentTimeMillis() + TEST_KEY_EXPIRY;
 	private boolean detailedStats = false;
 	private String ipHeader = null;
+	private int gzipThreshold = 0;
 
 	private Logger logger;
 
@@ -348,11 +351,36 @@ public class Configuration
 						otherServersList.toArray(new ServerInfo[otherServersList.size()]);
 				}
 				else if(child.getTagName().equals("eventthreads"))
+				{
+					String value = getText(child);
+					if(value.equals("virtual"))
+					{
+						virtualEventThreads = true;
+					}
+					else
+					{
+						try
+						{
+							eventThreads = Integer.parseInt(value);
+							if(eventThreads < 1 || eventThreads > 100)
+							{
+								throw new NumberFormatException();
+							}
+						}
+						catch(NumberFormatException e)
+						{
+							throw new StartupException(ErrorCode.STARTUP_CONFIGFORMAT,
+								"The <eventthreads> value is not a valid thread count number "
+									+ "(or 'virtual').");
+						}
+					}
+				}
+				else if(child.getTagName().equals("selectorthreads"))
 				{
 					try
 					{
-						eventThreads = Integer.parseInt(getText(child));
-						if(eventThreads < 1 || eventThreads > 100)
+						selectorThreads = Integer.parseInt(getText(child));
+						if(selectorThreads < 1 || selectorThreads > 64)
 						{
 							throw new NumberFormatException();
 						}
@@ -360,7 +388,23 @@ public class Configuration
 					catch(NumberFormatException e)
 					{
 						throw new StartupException(ErrorCode.STARTUP_CONFIGFORMAT,
-							"The <eventthreads> value is not a valid thread count number.");
+							"The <selectorthreads> value is not a valid thread count number.");
+					}
+				}
+				else if(child.getTagName().equals("gzipthreshold"))
+				{
+					try
+					{
+						gzipThreshold = Integer.parseInt(getText(child));
+						if(gzipThreshold < 0)
+						{
+							throw new NumberFormatException();
+						}
+					}
+					catch(NumberFormatException e)
+					{
+						throw new StartupException(ErrorCode.STARTUP_CONFIGFORMAT,
+							"The <gzipthreshold> value is not a valid number of bytes.");
 					}
 				}
 				else if(child.getTagName().equals("testkey"))
@@ -468,7 +512,11 @@ public class Configuration
 				"STARTUP History retained for: " + (historyTime/60000L) + " minutes");
 
 			logger.log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,
-				"STARTUP Event threads: " + eventThreads);
+				"STARTUP Event threads: "
+				+ (virtualEventThreads ? "virtual" : eventThreads));
+
+			logger.log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,
+				"STARTUP Selector threads: " + selectorThreads);
 
 			logger.log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,
 				"STARTUP Detailed stats: " + (detailedStats ? "tracked" : "not tracked"));
@@ -476,6 +524,10 @@ public class Configuration
 			logger.log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,
 				"STARTUP IP header: " + (ipHeader==null ? "(none)" : ipHeader));
 
+			logger.log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,
+				"STARTUP Gzip: " + (gzipThreshold == 0 ? "off"
+					: "responses from " + gzipThreshold + " bytes"));
+
 			logger.log(Logger.SYSTEM_LOG, Logger.Level.NORMAL, "STARTUP This server: "
 				+ thisServer);
 			for(int i = 0; i < otherServers.length; i++)
@@ -575,6 +627,25 @@ public class Configuration
 		return eventThreads;
 	}
 
+	/**
+	 * @return True if each event should run on its own virtual thread (in which
+	 *   case {@link #getEventThreads()} is not used)
+	 */
+	public boolean isVirtualEventThreads()
+	{
+		return virtualEventThreads;
+	}
+
+	/**
+	 * @return Number of server threads that each run a selector for a share
+	 *   of the connections (if more than 1, a separate thread accepts
+	 *   connections)
+	 */
+	public int getSelectorThreads()
+	{
+		return selectorThreads;
+	}
+
 	/** @return Magic number string */
 	public String getMagicNumber()
 	{
@@ -628,6 +699,16 @@ public class Configuration
 		return ipHeader;
 	}
 
+	/**
+	 * @return Minimum size (bytes) of response body that is compressed for
+	 *   clients that accept gzip, or 0 (the default) if responses are never
+	 *   compressed
+	 */
+	public int getGzipThreshold()
+	{
+		return gzipThreshold;
+	}
+
 	/**
 	 * Checks whether a given address belongs to one of the other servers.
 	 *
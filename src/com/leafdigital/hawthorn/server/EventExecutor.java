@@ -0,0 +1,44 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+/**
+ * Runs events passed to {@link EventHandler}. Implementations decide which
+ * threads the events run on.
+ */
+interface EventExecutor
+{
+	/**
+	 * Queues an event to be handled as soon as possible. May be called from
+	 * any thread.
+	 *
+	 * @param e Event to handle
+	 */
+	public void execute(Event e);
+
+	/** @return Number of events waiting to be handled */
+	public int getQueueSize();
+
+	/**
+	 * Shuts down the executor. Events already queued are handled first. Does
+	 * not return until all executor threads have finished.
+	 */
+	public void close();
+}
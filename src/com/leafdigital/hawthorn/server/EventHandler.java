@@ -21,83 +21,49 @@ package com.leafdigital.hawthorn.server;
 
 import java.util.*;
 
-import com.leafdigital.hawthorn.util.Auth;
+import com.leafdigital.hawthorn.util.*;
 
-/** Event handler that dispatches events from a queue to multiple threads. */
+/**
+ * Event handler that passes events to an executor, which runs them on
+ * multiple threads.
+ */
 public class EventHandler extends HawthornObject
 	implements Statistics.InstantStatisticHandler
 {
 	private final static String STATISTIC_EVENT_QUEUE_SIZE = "EVENT_QUEUE_SIZE";
 
-	private LinkedList<Event> queue = new LinkedList<Event>();
-	private TreeSet<TimedEvent> timerQueue = new TreeSet<TimedEvent>();
+	/** Length of timer wheel tick (timed events may be this late) */
+	private final static int TIMER_TICK = 50;
+	/** Number of slots in timer wheel */
+	private final static int TIMER_SLOTS = 512;
+
+	private EventExecutor executor;
+	private TimerWheel<Event> timerQueue = new TimerWheel<Event>(
+		TIMER_TICK, TIMER_SLOTS, System.currentTimeMillis());
 	private boolean close;
 	private boolean timerClosed;
-	private int openThreads;
-	private int timedEventID;
-
-	/** So that we can make events happen at a future time. */
-	private static class TimedEvent implements Comparable<TimedEvent>
-	{
-		private int id;
-		private long time;
-		private Event e;
-
-		private TimedEvent(int id, long time, Event e)
-		{
-			this.id = id;
-			this.time = time;
-			this.e = e;
-		}
-
-		public int compareTo(TimedEvent other)
-		{
-			return other == this ? 0 : time < other.time ? -1 : 1;
-		}
-
-		@Override
-		public boolean equals(Object obj)
-		{
-			return obj == this;
-		}
-
-		/** @return Time event is supposed to happen */
-		long getTime()
-		{
-			return time;
-		}
-
-		/** @return Event */
-		Event getEvent()
-		{
-			return e;
-		}
-
-		/** @return ID */
-		public int getId()
-		{
-			return id;
-		}
-	}
 
 	/**
 	 * Constructs event queue and starts threads.
 	 *
 	 * @param app Application main class
+	 * @throws StartupException If the configured executor can't be used
 	 */
-	public EventHandler(Hawthorn app)
+	public EventHandler(Hawthorn app) throws StartupException
 	{
 		super(app);
 
 		getStatistics().registerInstantStatistic(STATISTIC_EVENT_QUEUE_SIZE,this);
 
-		int threads = getConfig().getEventThreads();
-		for(int i = 0; i < threads; i++)
+		if(getConfig().isVirtualEventThreads())
 		{
-			new EventThread(i);
+			executor = new VirtualEventExecutor(app);
+		}
+		else
+		{
+			executor = new QueueEventExecutor(app, getConfig().getEventThreads());
 		}
 		new TimerThread();
-		openThreads = threads;
 	}
 
 	/**
@@ -107,14 +73,7 @@ public class EventHandler extends HawthornObject
 	 */
 	public void addEvent(Event e)
 	{
-		synchronized (queue)
-		{
-			// Add event to queue
-			queue.addLast(e);
-
-			// Wake one thread to consider it
-			queue.notify();
-		}
+		executor.execute(e);
 	}
 
 	/**
@@ -122,16 +81,20 @@ public class EventHandler extends HawthornObject
 	 *
 	 * @param time Time to happen
 	 * @param e Event to add
-	 * @return ID of timed event
+	 * @return Handle of timed event
 	 */
-	public int addTimedEvent(long time, Event e)
+	public TimerWheel.Timer<Event> addTimedEvent(long time, Event e)
 	{
 		synchronized (timerQueue)
 		{
-			int id = ++timedEventID;
-			timerQueue.add(new TimedEvent(id, time, e));
-			timerQueue.notify();
-			return id;
+			// Timer thread only needs waking if it was waiting with nothing to do,
+			// or until a later time than this event
+			long next = timerQueue.getNextExpireTime();
+			if(next == -1 || time < next)
+			{
+				timerQueue.notify();
+			}
+			return timerQueue.add(time, e);
 		}
 	}
 
@@ -141,19 +104,13 @@ public class EventHandler extends HawthornObject
 	 * events; i.e. when removing an event, you should be prepared for it to still
 	 * occur.)
 	 *
-	 * @param id ID of event to remove
+	 * @param timer Handle of event to remove
 	 */
-	public void removeTimedEvent(int id)
+	public void removeTimedEvent(TimerWheel.Timer<Event> timer)
 	{
 		synchronized (timerQueue)
 		{
-			for(Iterator<TimedEvent> i = timerQueue.iterator(); i.hasNext();)
-			{
-				if(i.next().getId() == id)
-				{
-					i.remove();
-				}
-			}
+			timerQueue.cancel(timer);
 		}
 	}
 
@@ -179,80 +136,7 @@ public class EventHandler extends HawthornObject
 			}
 		}
 
-		synchronized (queue)
-		{
-			queue.notifyAll();
-			while(openThreads > 0)
-			{
-				try
-				{
-					queue.wait();
-				}
-				catch(InterruptedException e)
-				{
-				}
-			}
-		}
-	}
-
-	/** Thread that works on events. */
-	private class EventThread extends Thread
-	{
-		EventThread(int index)
-		{
-			super("Event thread " + index);
-			start();
-		}
-
-		@Override
-		public void run()
-		{
-			// Allow auth key caching [~1MB cost]
-			Auth.enableThreadCache(true);
-			while(true)
-			{
-				// Get next event to handle
-				Event next;
-				synchronized (queue)
-				{
-					while(queue.isEmpty())
-					{
-						// If close requested, abort
-						if(close)
-						{
-							openThreads--;
-							// Clear auth key cache
-							Auth.enableThreadCache(false);
-							queue.notifyAll();
-							return;
-						}
-
-						// Wait for event
-						try
-						{
-							queue.wait();
-						}
-						catch(InterruptedException e)
-						{
-						}
-					}
-
-					// Get first event from queue
-					next = queue.removeFirst();
-				}
-
-				// Handle event
-				try
-				{
-					next.handle();
-				}
-				catch(Throwable t)
-				{
-					getLogger().log(Logger.SYSTEM_LOG, Logger.Level.ERROR,
-						"Event processing error (" + getName() + ")", t);
-				}
-			}
-		}
+		executor.close();
 	}
 
 	private class TimerThread extends Thread
@@ -269,35 +153,29 @@ public class EventHandler extends HawthornObject
 		@Override
 		public void run()
 		{
+			LinkedList<Event> due = new LinkedList<Event>();
 			while(true)
 			{
 				synchronized (timerQueue)
 				{
 					long now = System.currentTimeMillis();
-					long next = -1;
 
-					// Remove any queue events that are present
-					for(Iterator<TimedEvent> i = timerQueue.iterator(); i.hasNext();)
+					// Pass on any events that are due
+					timerQueue.expire(now, due);
+					while(!due.isEmpty())
 					{
-						TimedEvent upcoming = i.next();
-						if(upcoming.getTime() > now)
-						{
-							next = upcoming.getTime();
-							break;
-						}
-
-						addEvent(upcoming.getEvent());
-						i.remove();
+						addEvent(due.removeFirst());
 					}
 
-					// Wait until the next event
+					// Wait until the next tick
+					long next = timerQueue.getNextExpireTime();
 					try
 					{
 						if(next == -1)
 						{
 							timerQueue.wait();
 						}
-						else
+						else if(next > now)
 						{
 							timerQueue.wait(next - now);
 						}
@@ -320,9 +198,6 @@ public class EventHandler extends HawthornObject
 
 	public int getValue()
 	{
-		synchronized (queue)
-		{
-			return queue.size();
-		}
+		return executor.getQueueSize();
 	}
 }
@@ -0,0 +1,389 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.*;
+
+/**
+ * Compresses response bodies in gzip format. Deflaters are kept in a small
+ * pool, and reset and reused for each response.
+ * <p>
+ * A body that is sent to many connections with only a short prefix that
+ * differs (as when a message is sent to everyone waiting on a channel) can
+ * be compressed once with {@link #compressShared(byte[])}; each connection's
+ * response is then made from its prefix, stored uncompressed, followed by the
+ * shared compressed data.
+ */
+final class Gzip
+{
+	/** Gzip header: deflate, no flags, no time, unknown OS */
+	private final static byte[] HEADER =
+		{ 0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff };
+
+	/** Length of gzip trailer (CRC-32 and length) */
+	private final static int TRAILER_LENGTH = 8;
+
+	/** Maximum length of a stored deflate block */
+	private final static int MAX_STORED_BLOCK = 65535;
+
+	/** CRC-32 polynomial (reversed) */
+	private final static int CRC_POLYNOMIAL = 0xedb88320;
+
+	/** Maximum number of idle compressors kept */
+	private final static int MAX_POOLED_COMPRESSORS = 32;
+
+	/** Size of compressor buffer (it grows if needed) */
+	private final static int BUFFER_SIZE = 8192;
+
+	/**
+	 * Compressor buffers larger than this are not kept when the compressor is
+	 * returned to the pool
+	 */
+	private final static int MAX_POOLED_BUFFER_SIZE = 65536;
+
+	/**
+	 * Idle compressors. This is a pool rather than one per thread, so that it
+	 * still helps when each event runs on a new (virtual) thread.
+	 */
+	private final static ConcurrentLinkedQueue<Compressor> compressors =
+		new ConcurrentLinkedQueue<Compressor>();
+
+	/** Number of compressors in pool */
+	private final static AtomicInteger compressorsSize = new AtomicInteger();
+
+	/** Deflater and working buffer; only used by one thread at a time. */
+	private static class Compressor
+	{
+		private Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION,
+			true);
+		private CRC32 crc = new CRC32();
+		private byte[] buffer = new byte[BUFFER_SIZE];
+		private int length;
+
+		/**
+		 * Deflates data, adding it to the buffer after any existing content.
+		 * @param parts Data to compress, in order
+		 */
+		private void deflate(byte[][] parts)
+		{
+			deflater.reset();
+			crc.reset();
+			for(byte[] part : parts)
+			{
+				crc.update(part, 0, part.length);
+				deflater.setInput(part);
+				while(!deflater.needsInput())
+				{
+					deflateSome();
+				}
+			}
+			deflater.finish();
+			while(!deflater.finished())
+			{
+				deflateSome();
+			}
+		}
+
+		private void deflateSome()
+		{
+			if(length == buffer.length)
+			{
+				byte[] newBuffer = new byte[buffer.length * 2];
+				System.arraycopy(buffer, 0, newBuffer, 0, length);
+				buffer = newBuffer;
+			}
+			length += deflater.deflate(buffer, length, buffer.length - length);
+		}
+
+		/** @return Copy of buffer contents */
+		private byte[] getResult()
+		{
+			byte[] result = new byte[length];
+			System.arraycopy(buffer, 0, result, 0, length);
+			return result;
+		}
+	}
+
+	/** Compressed data that can be used as the end of many gzip responses. */
+	static final class Shared
+	{
+		private final byte[] deflated;
+		private final int crc, length;
+
+		/** Matrix that moves a CRC past this data (see combineCrc) */
+		private final int[] crcShift;
+
+		private Shared(byte[] deflated, int crc, int length)
+		{
+			this.deflated = deflated;
+			this.crc = crc;
+			this.length = length;
+			this.crcShift = getCrcShift(length);
+		}
+	}
+
+	/**
+	 * @return Compressor from the pool (or a new one if the pool is empty),
+	 *   with empty buffer
+	 */
+	private static Compressor getCompressor()
+	{
+		Compressor compressor = compressors.poll();
+		if(compressor == null)
+		{
+			compressor = new Compressor();
+		}
+		else
+		{
+			compressorsSize.decrementAndGet();
+		}
+		compressor.length = 0;
+		return compressor;
+	}
+
+	/**
+	 * Returns a compressor to the pool. If the pool is full, its native
+	 * resources are released instead.
+	 * @param compressor Compressor
+	 */
+	private static void doneWith(Compressor compressor)
+	{
+		if(compressorsSize.incrementAndGet() <= MAX_POOLED_COMPRESSORS)
+		{
+			if(compressor.buffer.length > MAX_POOLED_BUFFER_SIZE)
+			{
+				compressor.buffer = new byte[BUFFER_SIZE];
+			}
+			compressors.offer(compressor);
+		}
+		else
+		{
+			compressorsSize.decrementAndGet();
+			compressor.deflater.end();
+		}
+	}
+
+	/**
+	 * Compresses data as a complete gzip file.
+	 * @param parts Data to compress, in order
+	 * @return Gzip data
+	 */
+	static byte[] compress(byte[][] parts)
+	{
+		Compressor compressor = getCompressor();
+		try
+		{
+			System.arraycopy(HEADER, 0, compressor.buffer, 0, HEADER.length);
+			compressor.length = HEADER.length;
+			compressor.deflate(parts);
+
+			int length = 0;
+			for(byte[] part : parts)
+			{
+				length += part.length;
+			}
+			byte[] result = new byte[compressor.length + TRAILER_LENGTH];
+			System.arraycopy(compressor.buffer, 0, result, 0, compressor.length);
+			putTrailer(result, compressor.length, (int)compressor.crc.getValue(),
+				length);
+			return result;
+		}
+		finally
+		{
+			doneWith(compressor);
+		}
+	}
+
+	/**
+	 * Compresses data that will be sent to many connections.
+	 * @param data Data
+	 * @return Compressed data for use with {@link #compress(byte[], Shared)}
+	 */
+	static Shared compressShared(byte[] data)
+	{
+		Compressor compressor = getCompressor();
+		try
+		{
+			compressor.deflate(new byte[][] { data });
+			return new Shared(compressor.getResult(),
+				(int)compressor.crc.getValue(), data.length);
+		}
+		finally
+		{
+			doneWith(compressor);
+		}
+	}
+
+	/**
+	 * Builds a gzip file containing a prefix followed by shared data. Only the
+	 * first and last arrays are new; the middle one is the shared data.
+	 * @param prefix Data that comes first (should be short)
+	 * @param shared Shared compressed data
+	 * @return Gzip data in three parts
+	 */
+	static byte[][] compress(byte[] prefix, Shared shared)
+	{
+		// The prefix goes in stored (uncompressed) non-final deflate blocks,
+		// which end on a byte boundary so the shared blocks can follow
+		int blocks = Math.max(1,
+			(prefix.length + MAX_STORED_BLOCK - 1) / MAX_STORED_BLOCK);
+		byte[] start = new byte[HEADER.length + blocks * 5 + prefix.length];
+		System.arraycopy(HEADER, 0, start, 0, HEADER.length);
+		int pos = HEADER.length;
+		for(int done = 0, block = 0; block < blocks; block++)
+		{
+			int length = Math.min(MAX_STORED_BLOCK, prefix.length - done);
+			start[pos++] = 0;
+			start[pos++] = (byte)length;
+			start[pos++] = (byte)(length >> 8);
+			start[pos++] = (byte)~length;
+			start[pos++] = (byte)(~length >> 8);
+			System.arraycopy(prefix, done, start, pos, length);
+			pos += length;
+			done += length;
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(prefix, 0, prefix.length);
+		byte[] trailer = new byte[TRAILER_LENGTH];
+		putTrailer(trailer, 0, times(shared.crcShift, (int)crc.getValue())
+			^ shared.crc, prefix.length + shared.length);
+
+		return new byte[][] { start, shared.deflated, trailer };
+	}
+
+	/**
+	 * Writes the gzip trailer.
+	 * @param target Target array
+	 * @param pos Position in array
+	 * @param crc CRC-32 of uncompressed data
+	 * @param length Length of uncompressed data
+	 */
+	private static void putTrailer(byte[] target, int pos, int crc, int length)
+	{
+		for(int i=0; i<4; i++)
+		{
+			target[pos + i] = (byte)(crc >> (i * 8));
+			target[pos + 4 + i] = (byte)(length >> (i * 8));
+		}
+	}
+
+	/**
+	 * Gets a matrix that, applied with {@link #times(int[], int)} to the CRC of
+	 * some data A, gives a value which when XORed with the CRC of data B (of
+	 * the given length) is the CRC of A followed by B. This is the method
+	 * used by zlib's crc32_combine, except that the matrices are multiplied
+	 * together so the result can be reused.
+	 * @param length Length of the second data
+	 * @return Matrix (each int is a column)
+	 */
+	private static int[] getCrcShift(long length)
+	{
+		int[] result = new int[32];
+		for(int n=0; n<32; n++)
+		{
+			result[n] = 1 << n;
+		}
+		if(length == 0)
+		{
+			return result;
+		}
+
+		// Operator for one zero bit, then two, then four
+		int[] odd = new int[32], even = new int[32];
+		odd[0] = CRC_POLYNOMIAL;
+		for(int n=1; n<32; n++)
+		{
+			odd[n] = 1 << (n - 1);
+		}
+		square(even, odd);
+		square(odd, even);
+
+		// Apply operators for each bit of the length in bytes
+		do
+		{
+			square(even, odd);
+			if((length & 1) != 0)
+			{
+				result = multiply(even, result);
+			}
+			length >>= 1;
+			if(length == 0)
+			{
+				break;
+			}
+			square(odd, even);
+			if((length & 1) != 0)
+			{
+				result = multiply(odd, result);
+			}
+			length >>= 1;
+		}
+		while(length != 0);
+		return result;
+	}
+
+	/**
+	 * @param matrix Matrix
+	 * @param vector Vector
+	 * @return Matrix times vector (over GF(2))
+	 */
+	private static int times(int[] matrix, int vector)
+	{
+		int sum = 0;
+		for(int i=0; vector != 0; i++, vector >>>= 1)
+		{
+			if((vector & 1) != 0)
+			{
+				sum ^= matrix[i];
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * @param target Receives matrix squared
+	 * @param matrix Matrix
+	 */
+	private static void square(int[] target, int[] matrix)
+	{
+		for(int n=0; n<32; n++)
+		{
+			target[n] = times(matrix, matrix[n]);
+		}
+	}
+
+	/**
+	 * @param a First matrix
+	 * @param b Second matrix
+	 * @return a times b
+	 */
+	private static int[] multiply(int[] a, int[] b)
+	{
+		int[] result = new int[32];
+		for(int n=0; n<32; n++)
+		{
+			result[n] = times(a, b[n]);
+		}
+		return result;
+	}
+}
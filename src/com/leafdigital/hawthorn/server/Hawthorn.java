@@ -22,6 +22,7 @@ package com.leafdigital.hawthorn.server;
 import java.io.File;
 import java.security.NoSuchAlgorithmException;
 import java.util.EnumSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.leafdigital.hawthorn.server.Logger.Level;
 import com.leafdigital.hawthorn.util.Auth;
@@ -50,6 +51,16 @@ public class Hawthorn
 	/** Other server connections */
 	private OtherServers otherServers;
 
+	/** Keys that have already been checked */
+	private KeyCache keyCache;
+
+	/** Masked user names that have already been calculated */
+	private ConcurrentHashMap<String, String> maskedUsers =
+		new ConcurrentHashMap<String, String>();
+
+	/** Number of masked user names to remember before starting again */
+	private final static int MAX_MASKED_USERS = 50000;
+
 	/** Statistic: current memory usage */
 	private final static String STATISTIC_MEMORY_USAGE_KB = "MEMORY_USAGE_KB";
 
@@ -90,6 +101,7 @@ public class Hawthorn
 		{
 			config = new Configuration(configFile);
 			statistics = new Statistics(this);
+			keyCache = new KeyCache(this);
 			channels = new Channels(this);
 			otherServers = new OtherServers(this);
 			eventHandler = new EventHandler(this);
@@ -250,6 +262,49 @@ public class Hawthorn
 		}
 	}
 
+	/**
+	 * Checks a key supplied for authentication. Equivalent to comparing with
+	 * {@link #getValidKey(String, String, String, String, EnumSet, long)}, but
+	 * doesn't build the key string. Keys that were already checked are
+	 * remembered until they expire.
+	 *
+	 * @param key Key to check
+	 * @param channel Channel name
+	 * @param user User name
+	 * @param displayName User display name
+	 * @param extra Extra user details
+	 * @param permissions User permissions
+	 * @param keyTime Key issue time
+	 * @return True if key is correct
+	 */
+	boolean isValidKey(String key, String channel, String user,
+		String displayName, String extra, EnumSet<Auth.Permission> permissions,
+		long keyTime)
+	{
+		long now = System.currentTimeMillis();
+		if(keyCache.isVerified(key, channel, user, displayName, extra, permissions,
+			keyTime, now))
+		{
+			return true;
+		}
+		try
+		{
+			if(!Auth.isValidKey(key, getConfig().getMagicNumber(), user,
+				displayName, extra, permissions, channel, keyTime))
+			{
+				return false;
+			}
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			// This is really not expected as we tested during init
+			throw new Error("Unexpected error: missing SHA-1");
+		}
+		keyCache.addVerified(key, channel, user, displayName, extra, permissions,
+			keyTime, now);
+		return true;
+	}
+
 	/**
 	 * Uses the server's magic number to create a hashed version of a user name
 	 * which can be sent to people we don't trust to see their real user name.
@@ -258,14 +313,28 @@ public class Hawthorn
 	 */
 	String getMaskedUser(String user)
 	{
+		String masked = maskedUsers.get(user);
+		if(masked != null)
+		{
+			return masked;
+		}
+
 		try
 		{
-			return "?" + Auth.hash(getConfig().getMagicNumber() + "\n" + user);
+			masked = "?" + Auth.hash(getConfig().getMagicNumber() + "\n" + user);
 		}
 		catch(NoSuchAlgorithmException e)
 		{
 			// This is really not expected as we tested during init
 			throw new Error("Unexpected error: missing SHA-1");
 		}
+
+		// Keep the cache bounded; it will soon fill again with active users
+		if(maskedUsers.size() >= MAX_MASKED_USERS)
+		{
+			maskedUsers.clear();
+		}
+		maskedUsers.put(user, masked);
+		return masked;
 	}
 }
@@ -20,7 +20,6 @@ along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
 package com.leafdigital.hawthorn.server;
 
 import java.io.*;
-import java.net.URLDecoder;
 import java.util.*;
 
 import com.leafdigital.hawthorn.server.Logger.Level;
@@ -40,6 +39,8 @@ public class HttpEvent extends Event
 	static final String POLL = "poll";
 	/** Request type: wait */
 	static final String WAIT = "wait";
+	/** Request type: stream */
+	static final String STREAM = "stream";
 	/** Request type: recent */
 	static final String RECENT = "recent";
 	/** Request type: log */
@@ -55,25 +56,55 @@ public class HttpEvent extends Event
 	/** Regular expression matching positive ints */
 	static final String REGEXP_INT = "[0-9]{1,9}";
 
-	/** Favicon data */
-	private volatile static byte[] favIcon=null;
+	/** Favicon response */
+	private volatile static StaticResponse favIcon=null;
 
-	private String request;
+	/** Request path as received */
+	private byte[] request;
+
+	/** Request path as text (only created if needed) */
+	private String requestText;
 
 	private HttpServer.Connection connection;
 
 	/**
 	 * @param app Main app object
-	 * @param request HTTP request path
+	 * @param request HTTP request path (raw bytes from request line)
 	 * @param connection Connection object that made this request
 	 */
-	HttpEvent(Hawthorn app, String request, HttpServer.Connection connection)
+	HttpEvent(Hawthorn app, byte[] request, HttpServer.Connection connection)
 	{
 		super(app);
 		this.request = request;
 		this.connection = connection;
 	}
 
+	/**
+	 * @param request Raw request path
+	 * @return Request path as text
+	 */
+	static String getText(byte[] request)
+	{
+		try
+		{
+			return new String(request, "US-ASCII");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new Error("Missing US-ASCII support", e);
+		}
+	}
+
+	/** @return Request path as text */
+	private String getRequest()
+	{
+		if(requestText == null)
+		{
+			requestText = getText(request);
+		}
+		return requestText;
+	}
+
 	@Override
 	public void handle() throws OperationException
 	{
@@ -81,96 +112,55 @@ public class HttpEvent extends Event
 		boolean html=false;
 		try
 		{
-			String path;
-			HashMap<String, String> params = new HashMap<String, String>();
-
-			int question = request.indexOf('?');
-			if(question == -1)
-			{
-				path = request;
-			}
-			else
-			{
-				path = request.substring(0, question);
-				String remainder = request.substring(question + 1);
-				while(remainder.length() > 0)
-				{
-					int and = remainder.indexOf('&');
-					String paramPair;
-					if(and == -1)
-					{
-						paramPair = remainder;
-						remainder = "";
-					}
-					else
-					{
-						paramPair = remainder.substring(0, and);
-						remainder = remainder.substring(and + 1);
-					}
+			HttpParams params = HttpParams.parse(request);
 
-					int equals = paramPair.indexOf('=');
-					if(equals == -1)
-					{
-						params.put(paramPair, null);
-					}
-					else
-					{
-						try
-						{
-							String value = paramPair.substring(equals + 1);
-							params.put(paramPair.substring(0, equals), URLDecoder.decode(
-								value, "UTF-8"));
-						}
-						catch(UnsupportedEncodingException e)
-						{
-							throw new Error("UTF-8 not supported?!", e);
-						}
-					}
-				}
-			}
-
-			html = path.startsWith("/hawthorn/html/");
-			if(path.equals("/hawthorn/say"))
+			html = startsWith("/hawthorn/html/");
+			if(isPath(params, "/hawthorn/say"))
 			{
 				requestType = SAY;
 				handleSay(params);
 			}
-			else if(path.equals("/hawthorn/ban"))
+			else if(isPath(params, "/hawthorn/ban"))
 			{
 				requestType = BAN;
 				handleBan(params);
 			}
-			else if(path.equals("/hawthorn/leave"))
+			else if(isPath(params, "/hawthorn/leave"))
 			{
 				requestType = LEAVE;
 				handleLeave(params);
 			}
-			else if(path.equals("/hawthorn/poll"))
+			else if(isPath(params, "/hawthorn/poll"))
 			{
 				requestType = POLL;
 				handlePoll(params);
 			}
-			else if(path.equals("/hawthorn/wait"))
+			else if(isPath(params, "/hawthorn/wait"))
 			{
 				requestType = WAIT;
 				handleWait(params);
 			}
-			else if(path.equals("/hawthorn/recent"))
+			else if(isPath(params, "/hawthorn/stream"))
+			{
+				requestType = STREAM;
+				handleStream(params);
+			}
+			else if(isPath(params, "/hawthorn/recent"))
 			{
 				requestType = RECENT;
 				handleRecent(params);
 			}
-			else if(path.equals("/hawthorn/log"))
+			else if(isPath(params, "/hawthorn/log"))
 			{
 				requestType = LOG;
 				handleLog(params);
 			}
-			else if(path.equals("/hawthorn/html/statistics"))
+			else if(isPath(params, "/hawthorn/html/statistics"))
 			{
 				requestType = STATISTICS;
 				handleDisplayStatistics(params);
 			}
-			else if(path.equals("/favicon.ico"))
+			else if(isPath(params, "/favicon.ico"))
 			{
 				requestType = FAVICON;
 				handleDisplayFavicon();
@@ -208,6 +198,36 @@ public class HttpEvent extends Event
 		}
 	}
 
+	/**
+	 * @param params Parsed parameters
+	 * @param path Path
+	 * @return True if the request is for exactly this path
+	 */
+	private boolean isPath(HttpParams params, String path)
+	{
+		return params.getPathEnd() == path.length() && startsWith(path);
+	}
+
+	/**
+	 * @param prefix ASCII text
+	 * @return True if the request starts with this text
+	 */
+	private boolean startsWith(String prefix)
+	{
+		if(request.length < prefix.length())
+		{
+			return false;
+		}
+		for(int i=0; i<prefix.length(); i++)
+		{
+			if(request[i] != prefix.charAt(i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
 	private String getHtmlError(String title, String message)
 	{
 		return XML.getXHTML(title, null, "<p>"+XML.esc(message)+"</p>");
@@ -218,16 +238,16 @@ public class HttpEvent extends Event
 		if(html)
 		{
 			connection.send(404, getHtmlError("File not found",
-				"Unknown request address:\n" + request),HttpServer.CONTENT_TYPE_HTML);
+				"Unknown request address:\n" + getRequest()),HttpServer.CONTENT_TYPE_HTML);
 		}
 		else
 		{
-			connection.send(404, "// Unknown request address:\n// " + request,
+			connection.send(404, "// Unknown request address:\n// " + getRequest(),
 				HttpServer.CONTENT_TYPE_JAVASCRIPT);
 		}
 	}
 
-	private void handleSay(HashMap<String, String> params)
+	private void handleSay(HttpParams params)
 		throws OperationException
 	{
 		String errorFunction = "sayError";
@@ -245,11 +265,11 @@ public class HttpEvent extends Event
 
 		String id = getID(params);
 
-		String message = params.get("message");
-		String unique = params.get("unique");
+		String message = params.get(HttpParams.MESSAGE);
+		String unique = params.get(HttpParams.UNIQUE);
 
 		String error = null;
-		if(message == null || !message.matches(Hawthorn.REGEXP_MESSAGE))
+		if(message == null || !HttpParams.isMessage(message))
 		{
 			error = "Missing or invalid message=";
 		}
@@ -257,7 +277,7 @@ public class HttpEvent extends Event
 		{
 			error = "Must have write permission to [say]";
 		}
-		else if(unique == null || !unique.matches(REGEXP_LONG))
+		else if(unique == null || !HttpParams.isLong(unique))
 		{
 			error = "Missing unique=";
 		}
@@ -268,16 +288,16 @@ public class HttpEvent extends Event
 			return;
 		}
 
-		String user = params.get("user");
+		String user = params.get(HttpParams.USER);
 		Message m = new SayMessage(System.currentTimeMillis(), c.getName(),
 			connection.toString(), user, getApp().getMaskedUser(user),
-			params.get("displayname"), params.get("extra"), unique, message);
+			params.get(HttpParams.DISPLAYNAME), params.get(HttpParams.EXTRA), unique, message);
 		getApp().getOtherServers().sendMessage(m);
 		c.message(m, false);
 		connection.send("hawthorn.sayComplete(" + id + ");");
 	}
 
-	private void handleBan(HashMap<String, String> params)
+	private void handleBan(HttpParams params)
 		throws OperationException
 	{
 		String errorFunction = "banError";
@@ -296,28 +316,28 @@ public class HttpEvent extends Event
 		String id = getID(params);
 
 		String
-			ban = params.get("ban"),
-			banDisplayName = params.get("bandisplayname"),
-			banExtra = params.get("banextra"),
-			unique = params.get("unique"),
-			untilText = params.get("until");
+			ban = params.get(HttpParams.BAN),
+			banDisplayName = params.get(HttpParams.BANDISPLAYNAME),
+			banExtra = params.get(HttpParams.BANEXTRA),
+			unique = params.get(HttpParams.UNIQUE),
+			untilText = params.get(HttpParams.UNTIL);
 
 		String error = null;
-		if(ban == null || !ban.matches(Hawthorn.REGEXP_USERCHANNEL))
+		if(ban == null || !HttpParams.isUserChannel(ban))
 		{
 			error = "Missing or invalid ban=";
 		}
 		else if(banDisplayName == null ||
-			!banDisplayName.matches(Hawthorn.REGEXP_DISPLAYNAME))
+			!HttpParams.isDisplayName(banDisplayName))
 		{
 			error = "Missing or invalid bandisplayname=";
 		}
 		else if(banExtra == null ||
-			!banExtra.matches(Hawthorn.REGEXP_EXTRA))
+			!HttpParams.isExtra(banExtra))
 		{
 			error = "Missing or invalid bandisplayname=";
 		}
-		else if(untilText==null || !untilText.matches(REGEXP_LONG))
+		else if(untilText==null || !HttpParams.isLong(untilText))
 		{
 			error = "Missing or invalid until=";
 		}
@@ -332,10 +352,10 @@ public class HttpEvent extends Event
 			return;
 		}
 
-		String user = params.get("user");
+		String user = params.get(HttpParams.USER);
 		Message m = new BanMessage(System.currentTimeMillis(), c.getName(),
 			connection.toString(), user, getApp().getMaskedUser(user),
-			params.get("displayname"), params.get("extra"), unique, ban,
+			params.get(HttpParams.DISPLAYNAME), params.get(HttpParams.EXTRA), unique, ban,
 			getApp().getMaskedUser(ban), banDisplayName, banExtra,
 			Long.parseLong(untilText));
 		getApp().getOtherServers().sendMessage(m);
@@ -343,7 +363,7 @@ public class HttpEvent extends Event
 		connection.send("hawthorn.banComplete(" + id + ");");
 	}
 
-	private void handleLeave(HashMap<String, String> params)
+	private void handleLeave(HttpParams params)
 		throws OperationException
 	{
 		String errorFunction = "leaveError";
@@ -373,10 +393,10 @@ public class HttpEvent extends Event
 			return;
 		}
 
-		String user = params.get("user");
+		String user = params.get(HttpParams.USER);
 		Message m = new LeaveMessage(System.currentTimeMillis(), c.getName(),
 				connection.toString(), user, getApp().getMaskedUser(user),
-				params.get("displayname"), params.get("extra"), false);
+				params.get(HttpParams.DISPLAYNAME), params.get(HttpParams.EXTRA), false);
 		getApp().getOtherServers().sendMessage(m);
 		c.message(m, false);
 
@@ -386,20 +406,20 @@ public class HttpEvent extends Event
 	/**
 	 * Gets optional ID (default 0) from a request.
 	 *
-	 * @param params Param map
+	 * @param params Parameters
 	 * @return ID string
 	 */
-	private String getID(HashMap<String, String> params)
+	private String getID(HttpParams params)
 	{
-		String id = params.get("id");
-		if(id == null || !id.matches("[0-9]{1,9}"))
+		String id = params.get(HttpParams.ID);
+		if(id == null || !HttpParams.isInt(id))
 		{
 			id = "0";
 		}
 		return id;
 	}
 
-	private void handleRecent(HashMap<String, String> params)
+	private void handleRecent(HttpParams params)
 		throws OperationException
 	{
 		String errorFunction = "recentError";
@@ -417,10 +437,10 @@ public class HttpEvent extends Event
 
 		String id = getID(params);
 
-		String maxAge = params.get("maxage"), maxNumber = params.get("maxnumber"),
-			maxNames = params.get("maxnames"), filter = params.get("filter");
+		String maxAge = params.get(HttpParams.MAXAGE), maxNumber = params.get(HttpParams.MAXNUMBER),
+			maxNames = params.get(HttpParams.MAXNAMES), filter = params.get(HttpParams.FILTER);
 		String error = null;
-		if(maxAge == null || !maxAge.matches(REGEXP_INT))
+		if(maxAge == null || !HttpParams.isInt(maxAge))
 		{
 			error = "Missing or invalid maxage=";
 		}
@@ -432,11 +452,11 @@ public class HttpEvent extends Event
 		{
 			error = "Must have read permission to [recent]";
 		}
-		else if(maxNumber == null || !maxNumber.matches(REGEXP_INT))
+		else if(maxNumber == null || !HttpParams.isInt(maxNumber))
 		{
 			error = "Missing or invalid maxnumber=";
 		}
-		else if(maxNames != null && !maxNames.matches(REGEXP_INT))
+		else if(maxNames != null && !HttpParams.isInt(maxNames))
 		{
 			error = "Invalid maxnames=";
 		}
@@ -451,14 +471,39 @@ public class HttpEvent extends Event
 			return;
 		}
 
+		// Use cached response if the channel hasn't changed since it was built
+		RecentCache.Key key = new RecentCache.Key(Integer.parseInt(maxAge),
+			Integer.parseInt(maxNumber),
+			maxNames == null ? Channel.ANY : Integer.parseInt(maxNames),
+			filter != null, permissionSet.contains(Permission.MODERATE));
+		RecentCache cache = c.getRecentCache();
+		long version = c.getVersion();
+		byte[] data = cache.get(key, version, System.currentTimeMillis());
+		if(data == null)
+		{
+			data = buildRecent(c, key, version, cache);
+		}
+		connection.send(HttpServer.getUTF8("hawthorn.recentComplete(" + id), data);
+	}
+
+	/**
+	 * Builds the response to a recent request and adds it to the cache.
+	 * @param c Channel
+	 * @param key Cache key (contains request parameters)
+	 * @param version Channel version before getting messages
+	 * @param cache Cache
+	 * @return Response data following the ID
+	 */
+	private byte[] buildRecent(Channel c, RecentCache.Key key, long version,
+		RecentCache cache)
+	{
+		boolean trusted = key.isTrusted();
 		Message[] recent =
-			c.recent(Integer.parseInt(maxAge), Integer.parseInt(maxNumber), filter!=null);
-		Name[] names = c.getNames(maxNames == null ? Channel.ANY
-			:	Integer.parseInt(maxNames));
+			c.recent(key.getMaxAge(), key.getMaxNumber(), key.isSayOnly());
+		Name[] names = c.getNames(key.getMaxNames());
 
 		StringBuilder output = new StringBuilder();
-		output.append("hawthorn.recentComplete(" + id + ",[");
-		boolean trusted = permissionSet.contains(Permission.MODERATE);
+		output.append(",[");
 		long timestamp = buildMessageArray(c, recent, trusted, output);
 		output.append("],[");
 		for(int i = 0; i < names.length; i++)
@@ -472,10 +517,17 @@ public class HttpEvent extends Event
 		output.append("],");
 		output.append(timestamp);
 		output.append(");");
-		connection.send(output.toString());
+		byte[] data = HttpServer.getUTF8(output.toString());
+
+		// The response stays valid until the channel changes or the oldest
+		// message becomes too old to include
+		long expiry = recent.length == 0 ? Long.MAX_VALUE
+			: recent[0].getTime() + key.getMaxAge();
+		cache.put(key, version, expiry, data);
+		return data;
 	}
 
-	private void handleWait(HashMap<String, String> params)
+	private void handleWait(HttpParams params)
 		throws OperationException
 	{
 		String errorFunction = "waitError";
@@ -493,9 +545,9 @@ public class HttpEvent extends Event
 
 		String id = getID(params);
 
-		String lastTimeString = params.get("lasttime");
+		String lastTimeString = params.get(HttpParams.LASTTIME);
 		String error = null;
-		if(!lastTimeString.matches(REGEXP_LONG))
+		if(!HttpParams.isLong(lastTimeString))
 		{
 			error = "Invalid lasttime=";
 		}
@@ -511,12 +563,60 @@ public class HttpEvent extends Event
 		}
 
 		long lastTime = Long.parseLong(lastTimeString);
-		c.wait(connection, params.get("user"), params.get("displayname"),
-			params.get("extra"), id, lastTime,
+		c.wait(connection, params.get(HttpParams.USER), params.get(HttpParams.DISPLAYNAME),
+			params.get(HttpParams.EXTRA), id, lastTime,
 			permissionSet.contains(Permission.MODERATE));
 	}
 
-	private void handlePoll(HashMap<String, String> params)
+	private void handleStream(HttpParams params)
+		throws OperationException
+	{
+		String errorFunction = "streamError";
+		EnumSet<Permission> permissionSet =
+			checkAuth(params, errorFunction, false, false);
+		if(permissionSet == null)
+		{
+			return;
+		}
+		Channel c = checkChannel(params, errorFunction);
+		if(c==null)
+		{
+			return;
+		}
+
+		String lastTimeString = params.get(HttpParams.LASTTIME);
+		String error = null;
+		if(!HttpParams.isLong(lastTimeString))
+		{
+			error = "Invalid lasttime=";
+		}
+		else if(!permissionSet.contains(Permission.READ))
+		{
+			error = "Must have read permission to [stream]";
+		}
+		if(error != null)
+		{
+			connection.send("hawthorn.streamError(" + getID(params) + ",'"
+				+ JS.esc(error) + "');");
+			return;
+		}
+
+		// When the client reconnects, it says which event it got up to
+		long lastTime = Long.parseLong(lastTimeString);
+		if(connection.getLastEventId() != -1)
+		{
+			lastTime = connection.getLastEventId();
+		}
+		if(!connection.startStream())
+		{
+			return;
+		}
+		c.stream(connection, params.get(HttpParams.USER),
+			params.get(HttpParams.DISPLAYNAME), params.get(HttpParams.EXTRA),
+			lastTime, permissionSet.contains(Permission.MODERATE));
+	}
+
+	private void handlePoll(HttpParams params)
 		throws OperationException
 	{
 		String errorFunction = "pollError";
@@ -534,9 +634,9 @@ public class HttpEvent extends Event
 
 		String id = getID(params);
 
-		String lastTimeString = params.get("lasttime");
+		String lastTimeString = params.get(HttpParams.LASTTIME);
 		String error = null;
-		if(!lastTimeString.matches(REGEXP_LONG))
+		if(!HttpParams.isLong(lastTimeString))
 		{
 			error = "Invalid lasttime=";
 		}
@@ -553,7 +653,7 @@ public class HttpEvent extends Event
 
 		long lastTime = Long.parseLong(lastTimeString);
 		long delay = c.poll(connection.toString(),
-			params.get("user"), params.get("displayname"), params.get("extra"));
+			params.get(HttpParams.USER), params.get(HttpParams.DISPLAYNAME), params.get(HttpParams.EXTRA));
 		Message[] messages = c.getSince(lastTime, Channel.ANY, false);
 
 		StringBuilder output = new StringBuilder();
@@ -595,7 +695,7 @@ public class HttpEvent extends Event
 		return timestamp;
 	}
 
-	private void handleLog(HashMap<String, String> params)
+	private void handleLog(HttpParams params)
 		throws OperationException
 	{
 		String errorFunction = "logError";
@@ -605,16 +705,16 @@ public class HttpEvent extends Event
 		{
 			return;
 		}
-		String channel = params.get("channel");
+		String channel = params.get(HttpParams.CHANNEL);
 
 		// To retrieve log history, must use special user account
-		String date = params.get("date");
+		String date = params.get(HttpParams.DATE);
 		String error = null;
 		if(!permissionSet.contains(Permission.ADMIN))
 		{
 			error = "Must have admin permission to [log]";
 		}
-		else if(date == null || !date.matches("[0-9]{4}-[0-9]{2}-[0-9]{2}"))
+		else if(date == null || !HttpParams.isDate(date))
 		{
 			error = "Must set date=YYYY-MM-DD";
 		}
@@ -630,13 +730,13 @@ public class HttpEvent extends Event
 		}
 
 		getLogger().log(Logger.SYSTEM_LOG, Level.NORMAL,
-			"AUDIT LOG " + params.get("user") + " (" + connection.toString()
+			"AUDIT LOG " + params.get(HttpParams.USER) + " (" + connection.toString()
 			+ ") obtained log for " + channel + " on " + date);
 		connection.send("hawthorn.logComplete(" + getID(params) + ","
 			+ getLogger().getLogJS(channel, date) + ");");
 	}
 
-	private void handleDisplayStatistics(HashMap<String, String> params)
+	private void handleDisplayStatistics(HttpParams params)
 	  throws OperationException
 	{
 		EnumSet<Permission> permissionSet = checkAuth(params, null, true, true);
@@ -645,7 +745,7 @@ public class HttpEvent extends Event
 			return;
 		}
 
-		String channel = params.get("channel");
+		String channel = params.get(HttpParams.CHANNEL);
 
 		// To retrieve log history, must use special user account
 		String error = null;
@@ -664,23 +764,23 @@ public class HttpEvent extends Event
 			return;
 		}
 
-		if(params.get("gc")!=null)
+		if(params.get(HttpParams.GC)!=null)
 		{
 			long before = System.currentTimeMillis();
 			System.gc();
 			getLogger().log(Logger.SYSTEM_LOG, Level.NORMAL,
-				"AUDIT STATISTICS " + params.get("user") + " (" + connection.toString()
+				"AUDIT STATISTICS " + params.get(HttpParams.USER) + " (" + connection.toString()
 				+ ") ran garbage collection ("
 				+ (System.currentTimeMillis() - before) + "ms)");
 			connection.send(302, getConfig().getThisServer().getURL()
-				+ request.replace("&gc=y",""), HttpServer.CONTENT_TYPE_REDIRECT);
+				+ getRequest().replace("&gc=y",""), HttpServer.CONTENT_TYPE_REDIRECT);
 			return;
 		}
 
 		getLogger().log(Logger.SYSTEM_LOG, Level.NORMAL,
-			"AUDIT STATISTICS " + params.get("user") + " (" + connection.toString()
+			"AUDIT STATISTICS " + params.get(HttpParams.USER) + " (" + connection.toString()
 			+ ") viewed statistics page");
-		connection.send(200, getStatistics().getSummaryHtml(request),
+		connection.send(200, getStatistics().getSummaryHtml(getRequest()),
 			HttpServer.CONTENT_TYPE_HTML);
 	}
 
@@ -710,8 +810,10 @@ public class HttpEvent extends Event
 						}
 						input.close();
 
-						favIcon = new byte[pos];
-						System.arraycopy(buffer, 0, favIcon, 0, favIcon.length);
+						byte[] data = new byte[pos];
+						System.arraycopy(buffer, 0, data, 0, data.length);
+						favIcon = new StaticResponse(200, data,
+							HttpServer.CONTENT_TYPE_ICON, true);
 					}
 					catch(IOException e)
 					{
@@ -723,7 +825,7 @@ public class HttpEvent extends Event
 		}
 
 		// Send data
-		connection.send(200, favIcon, HttpServer.CONTENT_TYPE_ICON, null, true);
+		connection.send(favIcon);
 	}
 
 	/**
@@ -738,16 +840,16 @@ public class HttpEvent extends Event
 	 *   (error has already been sent)
 	 * @throws OperationException Problem with hashing function
 	 */
-	private EnumSet<Permission> checkAuth(HashMap<String, String> params,
+	private EnumSet<Permission> checkAuth(HttpParams params,
 		String errorFunction, boolean allowSystemChannel, boolean html)
 		throws OperationException
 	{
-		String channel = params.get("channel"), user = params.get("user"),
-			displayname =	params.get("displayname"), extra = params.get("extra"),
-			key = params.get("key"), keytime = params.get("keytime");
+		String channel = params.get(HttpParams.CHANNEL), user = params.get(HttpParams.USER),
+			displayname =	params.get(HttpParams.DISPLAYNAME), extra = params.get(HttpParams.EXTRA),
+			key = params.get(HttpParams.KEY), keytime = params.get(HttpParams.KEYTIME);
 
 		// Check permissions if supplied
-		String permissions = params.get("permissions");
+		String permissions = params.get(HttpParams.PERMISSIONS);
 		EnumSet<Permission> permissionSet = null;
 		if(permissions != null)
 		{
@@ -764,22 +866,22 @@ public class HttpEvent extends Event
 
 		String error = null;
 		if(channel == null
-			|| (!channel.matches(Hawthorn.REGEXP_USERCHANNEL) && !(allowSystemChannel && channel
+			|| (!HttpParams.isUserChannel(channel) && !(allowSystemChannel && channel
 				.equals(Logger.SYSTEM_LOG))))
 		{
 			error = "Missing or invalid channel=";
 		}
-		else if(user == null || !user.matches(Hawthorn.REGEXP_USERCHANNEL))
+		else if(user == null || !HttpParams.isUserChannel(user))
 		{
 			error = "Missing or invalid user=";
 		}
 		else if(displayname == null
-			|| !displayname.matches(Hawthorn.REGEXP_DISPLAYNAME))
+			|| !HttpParams.isDisplayName(displayname))
 		{
 			// Displayname can't contain control characters or "
 			error = "Missing or invalid displayname=";
 		}
-		else if(extra == null || !extra.matches(Hawthorn.REGEXP_EXTRA))
+		else if(extra == null || !HttpParams.isExtra(extra))
 		{
 			error = "Missing or invalid extra=";
 		}
@@ -791,7 +893,7 @@ public class HttpEvent extends Event
 		{
 			error = "Missing key=";
 		}
-		else if(keytime == null || !keytime.matches(REGEXP_LONG))
+		else if(keytime == null || !HttpParams.isLong(keytime))
 		{
 			error = "Missing or invalid keytime=";
 		}
@@ -799,8 +901,8 @@ public class HttpEvent extends Event
 		{
 			error = "Expired key";
 		}
-		else if(!key.equals(getApp().getValidKey(channel, user, displayname, extra,
-			permissionSet, Long.parseLong(keytime))))
+		else if(!getApp().isValidKey(key, channel, user, displayname, extra,
+			permissionSet, Long.parseLong(keytime)))
 		{
 			error = "Invalid key";
 		}
@@ -820,11 +922,11 @@ public class HttpEvent extends Event
 	 * @param errorFunction Name of error function
 	 * @return Channel or null if user is banned
 	 */
-	private Channel checkChannel(HashMap<String, String> params,
+	private Channel checkChannel(HttpParams params,
 		String errorFunction)
 	{
-		Channel c = getChannels().get(params.get("channel"));
-		if(c.isBanned(params.get("user")))
+		Channel c = getChannels().get(params.get(HttpParams.CHANNEL));
+		if(c.isBanned(params.get(HttpParams.USER)))
 		{
 			sendPermissionError(params, errorFunction, false, "You are banned");
 			return null;
@@ -842,7 +944,7 @@ public class HttpEvent extends Event
 	 * @param html True to send error in HTML instead of JS
 	 * @param error Error text
 	 */
-	private void sendPermissionError(HashMap<String, String> params,
+	private void sendPermissionError(HttpParams params,
 		String errorFunction, boolean html, String error)
 	{
 		if(html)
@@ -0,0 +1,405 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Parameters from an HTTP request. Only the parameters that Hawthorn uses are
+ * kept, each in a fixed slot, so they can be read without a map lookup.
+ * Also contains checks for parameter values that are equivalent to the
+ * regular expressions in {@link Hawthorn} and {@link HttpEvent}.
+ */
+public final class HttpParams
+{
+	/** Parameter: channel */
+	public static final int CHANNEL = 0;
+	/** Parameter: user */
+	public static final int USER = 1;
+	/** Parameter: displayname */
+	public static final int DISPLAYNAME = 2;
+	/** Parameter: extra */
+	public static final int EXTRA = 3;
+	/** Parameter: permissions */
+	public static final int PERMISSIONS = 4;
+	/** Parameter: keytime */
+	public static final int KEYTIME = 5;
+	/** Parameter: key */
+	public static final int KEY = 6;
+	/** Parameter: id */
+	public static final int ID = 7;
+	/** Parameter: message */
+	public static final int MESSAGE = 8;
+	/** Parameter: unique */
+	public static final int UNIQUE = 9;
+	/** Parameter: ban */
+	public static final int BAN = 10;
+	/** Parameter: bandisplayname */
+	public static final int BANDISPLAYNAME = 11;
+	/** Parameter: banextra */
+	public static final int BANEXTRA = 12;
+	/** Parameter: until */
+	public static final int UNTIL = 13;
+	/** Parameter: maxage */
+	public static final int MAXAGE = 14;
+	/** Parameter: maxnumber */
+	public static final int MAXNUMBER = 15;
+	/** Parameter: maxnames */
+	public static final int MAXNAMES = 16;
+	/** Parameter: filter */
+	public static final int FILTER = 17;
+	/** Parameter: lasttime */
+	public static final int LASTTIME = 18;
+	/** Parameter: date */
+	public static final int DATE = 19;
+	/** Parameter: gc */
+	public static final int GC = 20;
+
+	/** Names of parameters, in slot order */
+	private final static String[] NAMES =
+	{
+		"channel", "user", "displayname", "extra", "permissions", "keytime", "key",
+		"id", "message", "unique", "ban", "bandisplayname", "banextra", "until",
+		"maxage", "maxnumber", "maxnames", "filter", "lasttime", "date", "gc"
+	};
+
+	private final String[] values = new String[NAMES.length];
+	private int pathEnd;
+
+	/** Buffer used when decoding escaped values */
+	private byte[] decodeBuffer;
+
+	private HttpParams()
+	{
+	}
+
+	/**
+	 * @param param Parameter slot, such as {@link #CHANNEL}
+	 * @return Value or null if not supplied
+	 */
+	public String get(int param)
+	{
+		return values[param];
+	}
+
+	/**
+	 * @return Length of path part of request (position of the '?', or the
+	 *   request length if there isn't one)
+	 */
+	public int getPathEnd()
+	{
+		return pathEnd;
+	}
+
+	/**
+	 * Parses the query string of a request path in a single pass, straight from
+	 * the request bytes. Values are decoded in the same way as URLDecoder
+	 * (UTF-8), except that each escape must be exactly two hex digits. As with
+	 * a map, if a parameter is repeated then the last value counts, and a
+	 * parameter without '=' counts as not supplied.
+	 * @param request Request path including query string
+	 * @return Parsed parameters
+	 * @throws IllegalArgumentException If a value contains an invalid escape
+	 */
+	public static HttpParams parse(byte[] request)
+		throws IllegalArgumentException
+	{
+		HttpParams params = new HttpParams();
+		int length = request.length;
+		int pos = 0;
+		while(pos < length && request[pos] != '?')
+		{
+			pos++;
+		}
+		params.pathEnd = pos;
+		pos++;
+
+		while(pos < length)
+		{
+			// Find end of this parameter and end of its name
+			int nameEnd = -1, end = pos;
+			for(; end < length; end++)
+			{
+				byte b = request[end];
+				if(b == '&')
+				{
+					break;
+				}
+				if(b == '=' && nameEnd == -1)
+				{
+					nameEnd = end;
+				}
+			}
+
+			int slot = findSlot(request, pos, nameEnd == -1 ? end : nameEnd);
+			if(slot != -1)
+			{
+				params.values[slot] = nameEnd == -1
+					? null : params.decode(request, nameEnd + 1, end);
+			}
+			pos = end + 1;
+		}
+		return params;
+	}
+
+	/**
+	 * @param request Request
+	 * @param start Start of name
+	 * @param end End of name
+	 * @return Slot for name, or -1 if it isn't one we use
+	 */
+	private static int findSlot(byte[] request, int start, int end)
+	{
+		int length = end - start;
+		for(int i=0; i<NAMES.length; i++)
+		{
+			String name = NAMES[i];
+			if(name.length() == length)
+			{
+				int j = 0;
+				while(j < length && request[start + j] == name.charAt(j))
+				{
+					j++;
+				}
+				if(j == length)
+				{
+					return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Decodes part of a request as URLDecoder would.
+	 * @param request Request
+	 * @param start Start of value
+	 * @param end End of value
+	 * @return Decoded value
+	 * @throws IllegalArgumentException If there is an invalid escape
+	 */
+	private String decode(byte[] request, int start, int end)
+		throws IllegalArgumentException
+	{
+		int i = start;
+		for(; i < end; i++)
+		{
+			byte b = request[i];
+			if(b == '%' || b == '+')
+			{
+				break;
+			}
+		}
+		if(i == end)
+		{
+			// Nothing to decode
+			return getString(request, start, end - start);
+		}
+
+		if(decodeBuffer == null || decodeBuffer.length < end - start)
+		{
+			decodeBuffer = new byte[Math.max(end - start, 64)];
+		}
+		byte[] buffer = decodeBuffer;
+		int length = 0;
+		for(i = start; i < end; i++)
+		{
+			byte b = request[i];
+			if(b == '%')
+			{
+				if(i + 2 >= end)
+				{
+					throw new IllegalArgumentException("Incomplete escape in parameter");
+				}
+				int high = Character.digit((char)(request[i+1] & 0xff), 16),
+					low = Character.digit((char)(request[i+2] & 0xff), 16);
+				if(high == -1 || low == -1)
+				{
+					throw new IllegalArgumentException("Invalid escape in parameter");
+				}
+				buffer[length++] = (byte)((high << 4) | low);
+				i += 2;
+			}
+			else if(b == '+')
+			{
+				buffer[length++] = (byte)' ';
+			}
+			else
+			{
+				buffer[length++] = b;
+			}
+		}
+		return getString(buffer, 0, length);
+	}
+
+	/**
+	 * @param data Buffer
+	 * @param offset Offset
+	 * @param length Length
+	 * @return UTF-8 string from buffer
+	 */
+	private static String getString(byte[] data, int offset, int length)
+	{
+		try
+		{
+			return new String(data, offset, length, "UTF-8");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new Error("UTF-8 not supported?!", e);
+		}
+	}
+
+	/**
+	 * Checks a user or channel name; equivalent to matching
+	 * {@link Hawthorn#REGEXP_USERCHANNEL}.
+	 * @param value Value (may be null)
+	 * @return True if valid
+	 */
+	public static boolean isUserChannel(String value)
+	{
+		if(value == null || value.length() == 0)
+		{
+			return false;
+		}
+		for(int i=0; i<value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if(!((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+				|| (c >= '0' && c <= '9') || c == '_'))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks a display name; equivalent to matching
+	 * {@link Hawthorn#REGEXP_DISPLAYNAME}.
+	 * @param value Value (may be null)
+	 * @return True if valid
+	 */
+	public static boolean isDisplayName(String value)
+	{
+		return value != null && value.length() > 0 && isExtra(value);
+	}
+
+	/**
+	 * Checks extra user data; equivalent to matching
+	 * {@link Hawthorn#REGEXP_EXTRA}.
+	 * @param value Value (may be null)
+	 * @return True if valid
+	 */
+	public static boolean isExtra(String value)
+	{
+		if(value == null)
+		{
+			return false;
+		}
+		for(int i=0; i<value.length(); i++)
+		{
+			char c = value.charAt(i);
+			if(c < 0x20 || c == '"')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks message text; equivalent to matching
+	 * {@link Hawthorn#REGEXP_MESSAGE}.
+	 * @param value Value (may be null)
+	 * @return True if valid
+	 */
+	public static boolean isMessage(String value)
+	{
+		if(value == null || value.length() == 0)
+		{
+			return false;
+		}
+		for(int i=0; i<value.length(); i++)
+		{
+			if(value.charAt(i) < 0x20)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks a positive long; equivalent to matching
+	 * {@link HttpEvent#REGEXP_LONG}.
+	 * @param value Value (may be null)
+	 * @return True if valid
+	 */
+	public static boolean isLong(String value)
+	{
+		return value != null && value.length() > 0 && value.length() <= 18
+			&& isDigits(value, 0, value.length());
+	}
+
+	/**
+	 * Checks a positive int; equivalent to matching
+	 * {@link HttpEvent#REGEXP_INT}.
+	 * @param value Value (may be null)
+	 * @return True if valid
+	 */
+	public static boolean isInt(String value)
+	{
+		return value != null && value.length() > 0 && value.length() <= 9
+			&& isDigits(value, 0, value.length());
+	}
+
+	/**
+	 * Checks a date in YYYY-MM-DD format (digits only, not a calendar check).
+	 * @param value Value (may be null)
+	 * @return True if valid
+	 */
+	public static boolean isDate(String value)
+	{
+		return value != null && value.length() == 10
+			&& value.charAt(4) == '-' && value.charAt(7) == '-'
+			&& isDigits(value, 0, 4) && isDigits(value, 5, 7)
+			&& isDigits(value, 8, 10);
+	}
+
+	/**
+	 * @param value Value
+	 * @param start Start position
+	 * @param end End position
+	 * @return True if all characters from start to end are ASCII digits
+	 */
+	private static boolean isDigits(String value, int start, int end)
+	{
+		for(int i=start; i<end; i++)
+		{
+			char c = value.charAt(i);
+			if(c < '0' || c > '9')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,442 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Parses HTTP request headers directly from the bytes in a connection's read
+ * buffer. Only the parts Hawthorn uses are extracted: the request target,
+ * the HTTP version, the Connection, Accept-Encoding and Last-Event-ID headers
+ * and (optionally) a header containing the real IP address. Nothing is copied
+ * until the caller asks for a value.
+ * <p>
+ * Each server thread has its own parser; results are only valid until the
+ * next call to {@link #parse(byte[], int)}.
+ */
+final class HttpRequestParser
+{
+	/** Bytes of request line before target */
+	private final static byte[] GET = { 'G', 'E', 'T', ' ' };
+	/** Bytes of request line after target, apart from last digit */
+	private final static byte[] HTTP_VERSION =
+		{ ' ', 'H', 'T', 'T', 'P', '/', '1', '.' };
+	private final static byte[] CONNECTION = getLowerCase("connection");
+	private final static byte[] CLOSE = getLowerCase("close");
+	private final static byte[] KEEP_ALIVE = getLowerCase("keep-alive");
+	private final static byte[] ACCEPT_ENCODING = getLowerCase("accept-encoding");
+	private final static byte[] GZIP = getLowerCase("gzip");
+	private final static byte[] LAST_EVENT_ID = getLowerCase("last-event-id");
+
+	/** Lower-case name of header containing IP address, or null if none */
+	private final byte[] ipHeader;
+
+	private int requestLineEnd, targetStart, targetEnd;
+	private boolean http11;
+	private int connectionStart, connectionEnd, ipStart, ipEnd,
+		encodingStart, encodingEnd, eventIdStart, eventIdEnd;
+
+	/**
+	 * @param ipHeader Name of header that contains the real IP address, or
+	 *   null if the address of the connection is used
+	 */
+	HttpRequestParser(String ipHeader)
+	{
+		this.ipHeader = ipHeader == null ? null : getLowerCase(ipHeader);
+	}
+
+	/**
+	 * @param text ASCII text
+	 * @return Bytes of text in lower-case
+	 */
+	private static byte[] getLowerCase(String text)
+	{
+		text = text.toLowerCase();
+		byte[] result = new byte[text.length()];
+		for(int i=0; i<result.length; i++)
+		{
+			result[i] = (byte)text.charAt(i);
+		}
+		return result;
+	}
+
+	/**
+	 * Looks for the end of the first request header. So that data isn't
+	 * scanned repeatedly when a header arrives in several reads, the search can
+	 * resume from where the previous one stopped; a CRLFCRLF that is split
+	 * between reads is still found.
+	 * @param array Data buffer
+	 * @param from Length of data that has already been searched
+	 * @param length Length of buffer that is filled
+	 * @return Position just after the CRLFCRLF that ends the header, or -1 if
+	 *   there isn't a complete header yet
+	 */
+	static int findHeaderEnd(byte[] array, int from, int length)
+	{
+		for(int i = Math.max(3, from); i < length; i++)
+		{
+			if(array[i] == '\n' && array[i - 1] == '\r'
+				&& array[i - 2] == '\n' && array[i - 3] == '\r')
+			{
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Parses a complete request header.
+	 * @param array Data buffer
+	 * @param headerEnd Position just after the end of the header
+	 * @return True if the request line is a valid GET request
+	 */
+	boolean parse(byte[] array, int headerEnd)
+	{
+		// Request line: GET target HTTP/1.x
+		requestLineEnd = 0;
+		while(array[requestLineEnd] != '\r')
+		{
+			requestLineEnd++;
+		}
+		targetStart = GET.length;
+		targetEnd = requestLineEnd - HTTP_VERSION.length - 1;
+		if(targetEnd <= targetStart || !matches(array, 0, GET)
+			|| !matches(array, targetEnd, HTTP_VERSION))
+		{
+			return false;
+		}
+		byte minor = array[requestLineEnd - 1];
+		if(minor != '0' && minor != '1')
+		{
+			return false;
+		}
+		http11 = minor == '1';
+		for(int i=targetStart; i<targetEnd; i++)
+		{
+			if(array[i] == '\n')
+			{
+				return false;
+			}
+		}
+
+		// Headers: only the first of each name counts
+		connectionStart = -1;
+		ipStart = -1;
+		encodingStart = -1;
+		eventIdStart = -1;
+		int pos = requestLineEnd + 2;
+		while(pos < headerEnd - 2)
+		{
+			int lineEnd = pos;
+			while(array[lineEnd] != '\r')
+			{
+				lineEnd++;
+			}
+			if(connectionStart == -1 && matchesName(array, pos, lineEnd, CONNECTION))
+			{
+				connectionStart = pos + CONNECTION.length + 1;
+				connectionEnd = lineEnd;
+			}
+			else if(encodingStart == -1
+				&& matchesName(array, pos, lineEnd, ACCEPT_ENCODING))
+			{
+				encodingStart = pos + ACCEPT_ENCODING.length + 1;
+				encodingEnd = lineEnd;
+			}
+			else if(eventIdStart == -1
+				&& matchesName(array, pos, lineEnd, LAST_EVENT_ID))
+			{
+				eventIdStart = pos + LAST_EVENT_ID.length + 1;
+				eventIdEnd = lineEnd;
+			}
+			else if(ipHeader != null && ipStart == -1
+				&& matchesName(array, pos, lineEnd, ipHeader))
+			{
+				ipStart = pos + ipHeader.length + 1;
+				ipEnd = lineEnd;
+			}
+			pos = lineEnd + 1;
+			if(array[pos] == '\n')
+			{
+				pos++;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param array Data buffer
+	 * @param pos Position
+	 * @param expected Expected bytes
+	 * @return True if the buffer contains exactly those bytes at that position
+	 */
+	private static boolean matches(byte[] array, int pos, byte[] expected)
+	{
+		for(int i=0; i<expected.length; i++)
+		{
+			if(array[pos + i] != expected[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param array Data buffer
+	 * @param pos Start of header line
+	 * @param lineEnd End of header line
+	 * @param name Lower-case header name
+	 * @return True if the line is for that header (not case-sensitive)
+	 */
+	private static boolean matchesName(byte[] array, int pos, int lineEnd,
+		byte[] name)
+	{
+		if(lineEnd - pos <= name.length || array[pos + name.length] != ':')
+		{
+			return false;
+		}
+		return equalsIgnoreCase(array, pos, name);
+	}
+
+	/**
+	 * @param array Data buffer
+	 * @param pos Position
+	 * @param lower Lower-case ASCII bytes
+	 * @return True if the buffer contains those bytes in any case
+	 */
+	private static boolean equalsIgnoreCase(byte[] array, int pos, byte[] lower)
+	{
+		for(int i=0; i<lower.length; i++)
+		{
+			int b = array[pos + i];
+			if(b >= 'A' && b <= 'Z')
+			{
+				b += 'a' - 'A';
+			}
+			if(b != lower[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param array Data buffer
+	 * @return Copy of the request target (path and query string)
+	 */
+	byte[] getTarget(byte[] array)
+	{
+		byte[] target = new byte[targetEnd - targetStart];
+		System.arraycopy(array, targetStart, target, 0, target.length);
+		return target;
+	}
+
+	/**
+	 * @param array Data buffer
+	 * @return Request line as text (for logging invalid requests)
+	 */
+	String getRequestLine(byte[] array)
+	{
+		return getText(array, 0, requestLineEnd);
+	}
+
+	/**
+	 * HTTP/1.1 connections persist unless the client says otherwise;
+	 * HTTP/1.0 connections only if the client asks.
+	 * @param array Data buffer
+	 * @return True if the connection should be kept open after the response
+	 */
+	boolean isKeepAlive(byte[] array)
+	{
+		if(http11)
+		{
+			return !isValue(array, connectionStart, connectionEnd, CLOSE);
+		}
+		else
+		{
+			return isValue(array, connectionStart, connectionEnd, KEEP_ALIVE);
+		}
+	}
+
+	/**
+	 * @param array Data buffer
+	 * @return True if the Accept-Encoding header includes gzip (without q=0)
+	 */
+	boolean acceptsGzip(byte[] array)
+	{
+		if(encodingStart == -1)
+		{
+			return false;
+		}
+		int pos = encodingStart;
+		while(pos < encodingEnd)
+		{
+			// Each item is: coding [; q=value]
+			int end = pos;
+			while(end < encodingEnd && array[end] != ',')
+			{
+				end++;
+			}
+			int semicolon = pos;
+			while(semicolon < end && array[semicolon] != ';')
+			{
+				semicolon++;
+			}
+			if(isValue(array, pos, semicolon, GZIP))
+			{
+				return semicolon == end || !isZeroQuality(array, semicolon + 1, end);
+			}
+			pos = end + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * @param array Data buffer
+	 * @param start Start of parameter
+	 * @param end End of parameter
+	 * @return True if the parameter is q=0 (or 0.0, etc)
+	 */
+	private static boolean isZeroQuality(byte[] array, int start, int end)
+	{
+		while(start < end && (array[start] & 0xff) <= ' ')
+		{
+			start++;
+		}
+		if(end - start < 3 || (array[start] | 0x20) != 'q' || array[start + 1] != '=')
+		{
+			return false;
+		}
+		for(int i = start + 2; i < end; i++)
+		{
+			byte b = array[i];
+			if(b != '0' && b != '.' && (b & 0xff) > ' ')
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param array Data buffer
+	 * @return Value of Last-Event-ID header (sent by clients reconnecting to
+	 *   an event stream), or -1 if there isn't one or it isn't a positive
+	 *   number
+	 */
+	long getLastEventId(byte[] array)
+	{
+		if(eventIdStart == -1)
+		{
+			return -1;
+		}
+		int start = eventIdStart, end = eventIdEnd;
+		while(start < end && (array[start] & 0xff) <= ' ')
+		{
+			start++;
+		}
+		while(end > start && (array[end - 1] & 0xff) <= ' ')
+		{
+			end--;
+		}
+		if(end == start || end - start > 18)
+		{
+			return -1;
+		}
+		long value = 0;
+		for(int i = start; i < end; i++)
+		{
+			byte b = array[i];
+			if(b < '0' || b > '9')
+			{
+				return -1;
+			}
+			value = value * 10 + (b - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @param array Data buffer
+	 * @return Trimmed lower-case value of IP address header, or null if there
+	 *   isn't one
+	 */
+	String getIpAddress(byte[] array)
+	{
+		if(ipStart == -1)
+		{
+			return null;
+		}
+		int start = ipStart, end = ipEnd;
+		while(start < end && (array[start] & 0xff) <= ' ')
+		{
+			start++;
+		}
+		while(end > start && (array[end - 1] & 0xff) <= ' ')
+		{
+			end--;
+		}
+		return getText(array, start, end).toLowerCase();
+	}
+
+	/**
+	 * @param array Data buffer
+	 * @param start Start of header value, or -1 if header not present
+	 * @param end End of header value
+	 * @param lower Expected lower-case value
+	 * @return True if the trimmed value matches (not case-sensitive)
+	 */
+	private static boolean isValue(byte[] array, int start, int end, byte[] lower)
+	{
+		if(start == -1)
+		{
+			return false;
+		}
+		while(start < end && (array[start] & 0xff) <= ' ')
+		{
+			start++;
+		}
+		while(end > start && (array[end - 1] & 0xff) <= ' ')
+		{
+			end--;
+		}
+		return end - start == lower.length && equalsIgnoreCase(array, start, lower);
+	}
+
+	/**
+	 * @param array Data buffer
+	 * @param start Start position
+	 * @param end End position
+	 * @return Text of that part of the buffer
+	 */
+	private static String getText(byte[] array, int start, int end)
+	{
+		try
+		{
+			return new String(array, start, end - start, "US-ASCII");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new Error("Missing US-ASCII support", e);
+		}
+	}
+}
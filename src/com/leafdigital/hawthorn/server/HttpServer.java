@@ -23,8 +23,10 @@ import java.io.*;
 import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
-import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.*;
 
 import com.leafdigital.hawthorn.util.*;
@@ -33,12 +35,12 @@ import com.leafdigital.hawthorn.util.*;
 public final class HttpServer extends HawthornObject
 	implements Statistics.InstantStatisticHandler
 {
-	private final static int CONNECTION_TIMEOUT = 90000, CLEANUP_EVERY = 30000,
+	private final static int CONNECTION_TIMEOUT = 90000, CLEANUP_EVERY = 10000,
 		LOGTIME_EVERY = 10000;
-	private final static String STATISTIC_CONNECTION_COUNT = "CONNECTION_COUNT";
 
-	/** How long the 'ages' items will be cached by browser (30 days) */
-	private final static long HOW_LONG_IS_AGES = 30L * 24L * 60L * 60L * 1000L;
+	/** Time a keep-alive connection may sit idle between requests */
+	private final static int KEEPALIVE_TIMEOUT = 20000;
+	private final static String STATISTIC_CONNECTION_COUNT = "CONNECTION_COUNT";
 
 	/** Content type for UTF-8 JavaScript */
 	final static String CONTENT_TYPE_JAVASCRIPT = "application/javascript; charset=UTF-8";
@@ -62,28 +64,59 @@ public final class HttpServer extends HawthornObject
 
 	private final static int BACKLOG = 256;
 
-	private final static Pattern REGEXP_HTTPREQUEST =
-		Pattern.compile("GET (.+) HTTP/1\\.[01]");
+	/** Start of Location header */
+	private final static byte[] LOCATION = ResponseHeaders.getBytes("Location: ");
+
+	/** Headers for gzipped responses */
+	private final static byte[] GZIP_HEADERS = ResponseHeaders.getBytes(
+		"Content-Encoding: gzip\r\nVary: Accept-Encoding\r\n");
+
+	/**
+	 * Header for event streams; there is no Content-Length, so the stream ends
+	 * when the connection closes
+	 */
+	private final static byte[] STREAM_HEADER = ResponseHeaders.getBytes(
+		"HTTP/1.1 200 OK\r\nConnection: close\r\n"
+		+ "Content-Type: text/event-stream; charset=UTF-8\r\n"
+		+ "Cache-Control: no-cache\r\nAccess-Control-Allow-Origin: *\r\n\r\n");
+
+	/**
+	 * Maximum number of event stream writes that can be waiting for a slow
+	 * client before it is disconnected
+	 */
+	private final static int MAX_STREAM_BACKLOG = 64;
+
+	/** Size of connection read buffers */
+	private final static int BUFFERSIZE = 8192;
+
+	/** Size of pooled response header buffers */
+	private final static int HEADER_BUFFERSIZE = 512;
+
+	/** Maximum number of free buffers of each size kept in the pools */
+	private final static int MAX_POOLED_BUFFERS = 1024;
+
 	private final static Pattern REGEXP_SERVERAUTH =
 		Pattern.compile("\\*([0-9]{1,18})\\*([a-f0-9]{40})");
 
-	private Selector selector;
 	private ServerSocketChannel server;
 
-	private HashMap<SelectionKey, Connection> connections =
-		new HashMap<SelectionKey, Connection>();
-
-	private LinkedList<SelectionKey> keysToClose =
-		new LinkedList<SelectionKey>();
+	private ServerThread[] serverThreads;
+	private AcceptorThread acceptorThread;
 
-	private LinkedList<SelectableChannel> channelsToClose =
-		new LinkedList<SelectableChannel>();
+	private ConcurrentLinkedQueue<SelectableChannel> channelsToClose =
+		new ConcurrentLinkedQueue<SelectableChannel>();
+	private AtomicInteger channelsToCloseSize = new AtomicInteger();
 
-	private Object closeSynch = new Object(), timeLogSynch = new Object();
+	private Thread closerThread;
+	private Object closeSynch = new Object();
 
-	private boolean close, closed, closeThreadClosed;
+	private BufferPool readBuffers =
+		new BufferPool(BUFFERSIZE, MAX_POOLED_BUFFERS, false);
+	private BufferPool headerBuffers =
+		new BufferPool(HEADER_BUFFERSIZE, MAX_POOLED_BUFFERS, true);
 
-	private int timeBusy, timeInSelect;
+	private volatile boolean close;
+	private boolean closeThreadClosed;
 
 	/**
 	 * @param app Main app object
@@ -110,6 +143,8 @@ public final class HttpServer extends HawthornObject
 				HttpEvent.POLL);
 			getStatistics().registerTimeStatistic(STATISTIC_SPECIFIC_REQUEST +
 				HttpEvent.WAIT);
+			getStatistics().registerTimeStatistic(STATISTIC_SPECIFIC_REQUEST +
+				HttpEvent.STREAM);
 			getStatistics().registerTimeStatistic(STATISTIC_SPECIFIC_REQUEST +
 				HttpEvent.RECENT);
 			getStatistics().registerTimeStatistic(STATISTIC_SPECIFIC_REQUEST +
@@ -124,10 +159,12 @@ public final class HttpServer extends HawthornObject
 			{
 				public int getValue()
 				{
-					synchronized(connections)
+					int total = channelsToCloseSize.get();
+					for(ServerThread thread : serverThreads)
 					{
-						return channelsToClose.size() + keysToClose.size();
+						total += thread.getCloseQueueSize();
 					}
+					return total;
 				}
 			});
 		getStatistics().registerInstantStatistic(STATISTIC_MAIN_THREAD_BUSY_PERCENT,
@@ -135,26 +172,39 @@ public final class HttpServer extends HawthornObject
 			{
 				public int getValue()
 				{
-					synchronized(timeLogSynch)
+					// With several server threads, report the busiest
+					int max = 0;
+					for(ServerThread thread : serverThreads)
 					{
-						int total = timeBusy + timeInSelect;
-						int percent = total==0 ? 0 : (timeBusy*100 + total/2) / total;
-						timeBusy = 0;
-						timeInSelect = 0;
-						return percent;
+						max = Math.max(max, thread.getBusyPercent());
 					}
+					return max;
 				}
 			});
 
+		int threads = getConfig().getSelectorThreads();
+		serverThreads = new ServerThread[threads];
 		try
 		{
-			selector = Selector.open();
 			server = ServerSocketChannel.open();
 			server.configureBlocking(false);
 			server.socket().bind(
 				new InetSocketAddress(getConfig().getThisServer().getAddress(),
 					getConfig().getThisServer().getPort()), BACKLOG);
-			server.register(selector, SelectionKey.OP_ACCEPT);
+			if(threads == 1)
+			{
+				// A single server thread accepts connections itself
+				serverThreads[0] = new ServerThread("Main server thread");
+				server.register(serverThreads[0].selector, SelectionKey.OP_ACCEPT);
+			}
+			else
+			{
+				for(int i = 0; i < threads; i++)
+				{
+					serverThreads[i] = new ServerThread("Server thread " + i);
+				}
+				acceptorThread = new AcceptorThread();
+			}
 		}
 		catch(IOException e)
 		{
@@ -162,31 +212,24 @@ public final class HttpServer extends HawthornObject
 				"Failed to initialise server socket.", e);
 		}
 
-		Thread t = new Thread(new Runnable()
-		{
-			public void run()
-			{
-				serverThread();
-			}
-		}, "Main server thread");
-
-		Thread t2 = new Thread(new Runnable()
+		closerThread = new Thread(new Runnable()
 		{
 			public void run()
 			{
 				closeThread();
 			}
 		}, "Connection closer thread");
+		closerThread.setPriority(Thread.MAX_PRIORITY);
 
-		// Increase the main server thread priority (this is because there is only
-		// one main server thread versus numerous event threads; and I want the
-		// recorded time from connect to HTTP result handling to be as accurate
-		// as possible).
-		t.setPriority(Thread.MAX_PRIORITY);
-		t2.setPriority(Thread.MAX_PRIORITY);
-
-		t.start();
-		t2.start();
+		for(ServerThread thread : serverThreads)
+		{
+			thread.start();
+		}
+		if(acceptorThread != null)
+		{
+			acceptorThread.start();
+		}
+		closerThread.start();
 	}
 
 	/**
@@ -194,29 +237,74 @@ public final class HttpServer extends HawthornObject
 	 */
 	public class Connection
 	{
-		private final static int BUFFERSIZE = 8192;
-
+		private ServerThread serverThread;
 		private SelectionKey key;
 		private SocketChannel channel;
+
+		/**
+		 * Read buffer from the pool; only held while there is unprocessed data
+		 * (null otherwise)
+		 */
 		private ByteBuffer buffer;
 
 		private long lastAction, startTime;
 		private String hostAddress;
 		private boolean otherServer, serverAuthenticated;
 
+		/**
+		 * True while a request has been passed to the event handler and its
+		 * response has not yet been sent (only accessed on server thread)
+		 */
+		private boolean requestInProgress;
+
+		/**
+		 * Length of data at the start of the read buffer that has already been
+		 * searched for the end of the request header
+		 */
+		private int headerScanned;
+
+		/** True if the connection should stay open after the current response */
+		private boolean keepAlive;
+
+		/** True if the client accepts gzip responses to the current request */
+		private boolean acceptsGzip;
+
+		/** Last-Event-ID header of the current request, or -1 if none */
+		private long lastEventId;
+
+		/** True once a response has been sent for the current request */
+		private boolean responseSent;
+
+		/** Data waiting to be written when the channel is ready */
+		private LinkedList<PendingWrite> outbound = new LinkedList<PendingWrite>();
+
+		/** True if the response is complete once outbound data is written */
+		private boolean finishAfterWrite;
+
+		private AtomicBoolean closed = new AtomicBoolean();
+
+		/** Event to run when the connection closes, or null if none */
+		private AtomicReference<Event> closeEvent = new AtomicReference<Event>();
+
 		private final static String CRLF = "\r\n";
 
+		/** Maximum number of digits in Content-Length */
+		private final static int MAX_LENGTH_DIGITS = 10;
+
 		/**
+		 * Constructs the connection and attaches it to the key.
+		 * @param serverThread Server thread that handles this connection
 		 * @param key Selection key
 		 */
-		private Connection(SelectionKey key)
+		private Connection(ServerThread serverThread, SelectionKey key)
 		{
+			this.serverThread = serverThread;
 			this.key = key;
 			this.channel = (SocketChannel)key.channel();
 			lastAction = System.currentTimeMillis();
 			startTime = lastAction;
-			buffer = ByteBuffer.allocate(BUFFERSIZE);
 			hostAddress = channel.socket().getInetAddress().getHostAddress();
+			key.attach(this);
 		}
 
 		/** @return Time at which connection was accepted */
@@ -228,11 +316,67 @@ public final class HttpServer extends HawthornObject
 		/** Closes the connection */
 		public void close()
 		{
-			closeChannel(key);
+			if(closed.compareAndSet(false, true))
+			{
+				serverThread.closeChannel(key);
+				runCloseEvent();
+			}
+		}
+
+		/**
+		 * Sets an event that runs (on an event thread) when the connection
+		 * closes. If it has already closed, the event runs straight away.
+		 * @param event Event
+		 */
+		void setCloseEvent(Event event)
+		{
+			closeEvent.set(event);
+			if(closed.get())
+			{
+				runCloseEvent();
+			}
+		}
+
+		/** Passes the close event, if any, to the event handler (only once). */
+		private void runCloseEvent()
+		{
+			Event event = closeEvent.getAndSet(null);
+			if(event != null)
+			{
+				getEventHandler().addEvent(event);
+			}
+		}
+
+		/** @return True if the connection has been closed */
+		boolean isClosed()
+		{
+			return closed.get();
+		}
+
+		/**
+		 * Called on the server thread once the connection's key has been
+		 * cancelled, to return buffers to the pools.
+		 */
+		private void releaseBuffers()
+		{
+			if(buffer != null)
+			{
+				readBuffers.release(buffer);
+				buffer = null;
+			}
+			synchronized(this)
+			{
+				for(PendingWrite pending : outbound)
+				{
+					pending.release();
+				}
+				outbound.clear();
+			}
 		}
 
 		/**
-		 * Sends an HTTP response on this connection and closes it. Note that all
+		 * Sends an HTTP response on this connection and closes it (unless it is
+		 * a keep-alive connection). Note that all
 		 * responses, even errors, use HTTP 200 OK. This is because we want the
 		 * JavaScript, not browser, to handle the error.
 		 *
@@ -244,7 +388,8 @@ public final class HttpServer extends HawthornObject
 		}
 
 		/**
-		 * Sends an HTTP response on this connection and closes it.
+		 * Sends an HTTP response on this connection and closes it (unless it is
+		 * a keep-alive connection).
 		 *
 		 * @param code HTTP code. Use 200 except for fatal errors where we don't
 		 *   know which callback function to call
@@ -255,30 +400,22 @@ public final class HttpServer extends HawthornObject
 		 */
 		public void send(int code, String data, String contentType) throws IllegalArgumentException
 		{
-			try
-			{
-				String location = null;
-				if(code == 302)
-				{
-					location = data;
-					data = XML.getXHTML("Redirect", "", "<p><a href=\""
-						+ XML.esc(location) + "\">" + XML.esc(location) + "</a></p>");
-				}
-
-				// Get data
-				byte[] dataBytes = data.getBytes("UTF-8");
-
-				// Send bytes
-				send(code, dataBytes, contentType, location, false);
-			}
-			catch(UnsupportedEncodingException e)
+			String location = null;
+			if(code == 302)
 			{
-				throw new Error("Basic encoding not supported?!", e);
+				location = data;
+				data = XML.getXHTML("Redirect", "", "<p><a href=\""
+					+ XML.esc(location) + "\">" + XML.esc(location) + "</a></p>");
 			}
+
+			// Send bytes
+			send(code, getUTF8(data), contentType, location, false);
 		}
 
 		/**
-		 * Sends an HTTP response on this connection and closes it.
+		 * Sends an HTTP response on this connection and closes it (unless it is
+		 * a keep-alive connection). Only the first response for each request is
+		 * sent; any later ones are ignored.
 		 *
 		 * @param code HTTP code. Use 200 except for fatal errors where we don't
 		 *   know which callback function to call
@@ -292,269 +429,590 @@ public final class HttpServer extends HawthornObject
 		public void send(int code, byte[] dataBytes, String contentType,
 			String location, boolean cacheForAges) throws IllegalArgumentException
 		{
-			try
-			{
-				// Get header
-				StringBuilder header = new StringBuilder();
-
-				String codeText;
-				switch(code)
-				{
-				case 200:
-					codeText = "OK";
-					break;
-				case 302:
-					codeText = "Redirect";
-					break;
-				case 403:
-					codeText = "Access denied";
-					break;
-				case 404:
-					codeText = "Not found";
-					break;
-				case 500:
-					codeText = "Internal server error";
-					break;
-				default:
-					throw new IllegalArgumentException("Unsupported HTTP code " + code);
-				}
-
-				header.append("HTTP/1.1 ");
-				header.append(code);
-				header.append(' ');
-				header.append(codeText);
-				header.append(CRLF);
-
-				header.append("Connection: close");
-				header.append(CRLF);
-
-				header.append("Content-Type: ");
-				header.append(contentType);
-				header.append(CRLF);
-
-				header.append("Content-Length: ");
-				header.append(dataBytes.length);
-				header.append(CRLF);
-
-				if(location!=null)
-				{
-					header.append("Location: ");
-					header.append(location);
-					header.append(CRLF);
-				}
-
-				if(cacheForAges)
-				{
-					SimpleDateFormat sdf = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss");
-					sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
-					header.append("Expires: ");
-					header.append(sdf.format(new Date(System.currentTimeMillis()
-						+ HOW_LONG_IS_AGES)));
-					header.append(" GMT");
-					header.append(CRLF);
-				}
-
-				header.append(CRLF);
-				byte[] headerBytes = header.toString().getBytes("US-ASCII");
-
-				// Combine the two
-				ByteBuffer response =
-					ByteBuffer.allocate(dataBytes.length + headerBytes.length);
-				response.put(headerBytes);
-				response.put(dataBytes);
-				response.flip();
-
-				// Send data
-				while(true)
-				{
-					try
-					{
-						channel.write(response);
-					}
-					catch(IOException e)
-					{
-						if(e instanceof ClosedChannelException)
-						{
-							getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,
-								"ERROR " + this + " User cancelled request");
-						}
-						else
-						{
-							getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,
-								"ERROR " + this + " Error writing data", e);
-						}
-						close();
-						return;
-					}
+			send(code, new byte[][] { dataBytes }, contentType, location,
+				cacheForAges, false);
+		}
 
-					// Close connection if needed
-					if(!response.hasRemaining())
-					{
-						close();
-						return;
-					}
+		/**
+		 * Sends a JavaScript response that is made up of several parts. The parts
+		 * are written in order without being copied, so the same arrays can be
+		 * sent to many connections at once (they must not be changed after).
+		 *
+		 * @param parts UTF-8 data to send
+		 */
+		public void send(byte[]... parts)
+		{
+			send(200, parts, CONTENT_TYPE_JAVASCRIPT, null, false, false);
+		}
 
-					// Still some data? OK, wait a bit and try again (yay polling -
-					// but this should hardly ever really happen, because usually
-					// the responses we send are far smaller than network buffers;
-					// exception is usually the statistics page).
-					try
-					{
-						getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,
-							"WARNING Event thread blocked for 10ms (this is OK if rare)");
-						Thread.sleep(10);
-					}
-					catch(InterruptedException ie)
-					{
-					}
-				}
-			}
-			catch(UnsupportedEncodingException e)
-			{
-				throw new Error("Basic encoding not supported?!", e);
-			}
+		/**
+		 * Sends a JavaScript response that has already been compressed with gzip
+		 * (only call if {@link #isGzipped(int)} returned true).
+		 *
+		 * @param parts Gzip data to send
+		 */
+		public void sendGzipped(byte[]... parts)
+		{
+			send(200, parts, CONTENT_TYPE_JAVASCRIPT, null, false, true);
 		}
 
-		private void read()
+		/**
+		 * @param length Length of response body
+		 * @return True if a response body of this length will be sent with gzip
+		 */
+		public boolean isGzipped(int length)
 		{
-			if(buffer == null)
+			int threshold = getConfig().getGzipThreshold();
+			return acceptsGzip && threshold != 0 && length >= threshold;
+		}
+
+		/**
+		 * Sends an HTTP response on this connection and closes it (unless it is
+		 * a keep-alive connection). Only the first response for each request is
+		 * sent; any later ones are ignored.
+		 *
+		 * @param code HTTP code
+		 * @param parts Data to send, in order
+		 * @param contentType Content type to send
+		 * @param location Location header (null = none)
+		 * @param cacheForAges If true, caches data for ages
+		 * @param gzipped True if data is already compressed with gzip; if false,
+		 *   it will be compressed here if the client accepts that and it is
+		 *   large enough
+		 * @throws IllegalArgumentException If the HTTP code isn't supported
+		 */
+		private void send(int code, byte[][] parts, String contentType,
+			String location, boolean cacheForAges, boolean gzipped)
+			throws IllegalArgumentException
+		{
+			if(!startResponse())
 			{
-				close();
 				return;
 			}
 
-			int read;
-			try
+			int contentLength = 0;
+			for(byte[] part : parts)
 			{
-				read = channel.read(buffer);
+				contentLength += part.length;
 			}
-			catch(IOException e)
+			if(!gzipped && isGzipped(contentLength))
 			{
-				// Connection got closed, or something else went wrong
-				close();
-				return;
+				parts = new byte[][] { Gzip.compress(parts) };
+				contentLength = parts[0].length;
+				gzipped = true;
 			}
-			if(read == -1)
+
+			// Most of the header is the same for every response of this type
+			ByteBuffer prefix = ResponseHeaders.getPrefix(code, contentType,
+				keepAlive);
+
+			// Put the rest of the header into a pooled buffer (unless it's
+			// unusually long); the header and data are written together without
+			// copying the data
+			byte[] locationBytes = location == null ? null : getASCII(location);
+			int length = MAX_LENGTH_DIGITS + CRLF.length() * 2
+				+ (location == null ? 0 : LOCATION.length + locationBytes.length)
+				+ (gzipped ? GZIP_HEADERS.length : 0);
+			boolean pooled = length <= headerBuffers.getBufferSize();
+			ByteBuffer headerBuffer = pooled ? headerBuffers.acquire()
+				: ByteBuffer.allocate(length);
+			putNumber(headerBuffer, contentLength);
+			headerBuffer.put((byte)'\r').put((byte)'\n');
+			if(location != null)
 			{
-				close();
-				return;
+				headerBuffer.put(LOCATION);
+				headerBuffer.put(locationBytes);
+				headerBuffer.put((byte)'\r').put((byte)'\n');
 			}
-			if(read == 0)
+			if(gzipped)
+			{
+				headerBuffer.put(GZIP_HEADERS);
+			}
+			if(!cacheForAges)
+			{
+				headerBuffer.put((byte)'\r').put((byte)'\n');
+			}
+			headerBuffer.flip();
+
+			// Send data. Usually the responses we send are far smaller than
+			// network buffers so this completes immediately; if not (statistics
+			// page, slow clients) the rest is written by the server thread.
+			int headerCount = cacheForAges ? 3 : 2;
+			ByteBuffer[] buffers = new ByteBuffer[parts.length + headerCount];
+			buffers[0] = prefix;
+			buffers[1] = headerBuffer;
+			if(cacheForAges)
+			{
+				buffers[2] = ResponseHeaders.getExpires(System.currentTimeMillis());
+			}
+			for(int i = 0; i < parts.length; i++)
+			{
+				buffers[i + headerCount] = ByteBuffer.wrap(parts[i]);
+			}
+			writeResponse(buffers, pooled ? headerBuffer : null);
+		}
+
+		/**
+		 * Sends a prebuilt response on this connection and closes it (unless it
+		 * is a keep-alive connection). Only the first response for each request
+		 * is sent; any later ones are ignored.
+		 *
+		 * @param response Response to send
+		 */
+		public void send(StaticResponse response)
+		{
+			if(!startResponse())
 			{
 				return;
 			}
-			lastAction = System.currentTimeMillis();
+			writeResponse(response.getBuffers(keepAlive, System.currentTimeMillis()),
+				null);
+		}
 
-			byte[] array = buffer.array();
-			int bufferPos = buffer.position();
+		/**
+		 * @return Value of the Last-Event-ID header in the current request
+		 *   (sent when a client reconnects to an event stream), or -1 if none
+		 */
+		public long getLastEventId()
+		{
+			return lastEventId;
+		}
 
-			// Might this be another server introducing itself?
-			if(!otherServer && bufferPos > 0 && array[0] == '*')
+		/**
+		 * Starts an event stream as the response to the current request. The
+		 * connection stays open until it is closed by either side; events are
+		 * sent with {@link #sendStream(byte[][])}.
+		 *
+		 * @return False if a response has already been sent or the connection
+		 *   has closed
+		 */
+		public boolean startStream()
+		{
+			if(!startResponse())
 			{
-				if(!getConfig().isOtherServer(channel.socket().getInetAddress()))
+				return false;
+			}
+			keepAlive = false;
+			return sendStream(STREAM_HEADER);
+		}
+
+		/**
+		 * Sends data on an event stream. This never blocks; if the client is
+		 * so slow that too much data is waiting, the connection is closed.
+		 *
+		 * @param parts Data to send, in order
+		 * @return False if the connection has closed
+		 */
+		public boolean sendStream(byte[]... parts)
+		{
+			synchronized(this)
+			{
+				if(outbound.size() >= MAX_STREAM_BACKLOG)
 				{
-					getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,	"SECURITY "
-						+ this + " Remote server connection from disallowed IP");
+					getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,
+						"ERROR " + this + " Event stream too slow");
 					close();
-					return;
+					return false;
 				}
-
-				otherServer = true;
 			}
-
-			if(otherServer)
+			ByteBuffer[] buffers = new ByteBuffer[parts.length];
+			for(int i = 0; i < parts.length; i++)
 			{
-				handleServer(array, bufferPos);
+				buffers[i] = ByteBuffer.wrap(parts[i]);
 			}
-			else
+			try
 			{
-				handleUser(array, bufferPos);
+				if(write(new PendingWrite(buffers, null), false))
+				{
+					// Counts as activity so that the connection doesn't time out
+					lastAction = System.currentTimeMillis();
+				}
+				return true;
+			}
+			catch(IOException e)
+			{
+				writeFailed(e);
+				return false;
 			}
 		}
 
 		/**
-		 * User communication follows HTTP.
-		 *
-		 * @param array Data buffer
-		 * @param bufferPos Length of buffer that is filled
+		 * Marks that the response to the current request is being sent.
+		 * @return False if a response has already been sent (this one should be
+		 *   discarded)
 		 */
-		private void handleUser(byte[] array, int bufferPos)
+		private boolean startResponse()
 		{
-			if(array[bufferPos - 1] == '\n' && array[bufferPos - 2] == '\r'
-				&& array[bufferPos - 3] == '\n' && array[bufferPos - 4] == '\r')
+			synchronized(this)
 			{
-				// Obtain GET/POST line
-				int i;
-				for(i = 0; array[i] != '\r'; i++)
+				if(responseSent)
 				{
-					;
+					getLogger().log(Logger.SYSTEM_LOG, Logger.Level.DETAIL,
+						"WARNING " + this + " Discarded extra response");
+					return false;
 				}
-				try
-				{
-					String firstLine = new String(array, 0, i, "US-ASCII");
-					Matcher m = REGEXP_HTTPREQUEST.matcher(firstLine);
-					if(!m.matches())
-					{
-						getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL, "SECURITY "
-							+ this + " Invalid request line: " + firstLine);
-						close();
-						return;
-					}
-
-					String ipHeader = getConfig().getIpHeader();
-					if(ipHeader != null)
-					{
-						// Get rest of header in lower-case
-						String remainingHeader = new String(array, i+2, bufferPos-(i+2),
-							"US-ASCII").toLowerCase();
-						// Find header
-						int pos = remainingHeader.indexOf(ipHeader.toLowerCase()+":");
-						if(pos != -1)
-						{
-							int cr = remainingHeader.indexOf('\r',
-								pos + ipHeader.length() + 1);
-							if(cr != -1)
-							{
-								hostAddress = remainingHeader.substring(
-									pos + ipHeader.length() + 1, cr).trim();
-							}
-						}
-					}
+				responseSent = true;
+				return true;
+			}
+		}
 
-					buffer = null;
-					receivedRequest(m.group(1));
-					return;
-				}
-				catch(UnsupportedEncodingException e)
+		/**
+		 * Writes a response, finishing the request if it all goes immediately.
+		 * @param buffers Buffers to write in order
+		 * @param pooled Buffer from header pool to release after, or null
+		 */
+		private void writeResponse(ByteBuffer[] buffers, ByteBuffer pooled)
+		{
+			try
+			{
+				if(write(new PendingWrite(buffers, pooled), true))
 				{
-					throw new Error("Missing US-ASCII support", e);
+					responseWritten();
 				}
 			}
-			else
+			catch(IOException e)
 			{
-				// Not received valid request yet. If we've received the full buffer,
-				// give up on it.
-				if(bufferPos == BUFFERSIZE)
-				{
-					getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL, "SECURITY "
-						+ this + " Received large invalid request");
-					close();
-					return;
-				}
+				writeFailed(e);
 			}
 		}
 
 		/**
-		 *
-		 * @param array Data buffer
-		 * @param bufferPos Length of buffer that is filled
+		 * Writes a non-negative number in decimal.
+		 * @param buffer Buffer
+		 * @param number Number
 		 */
-		private void handleServer(byte[] array, int bufferPos)
+		private void putNumber(ByteBuffer buffer, int number)
 		{
-			int pos = 0;
-			while(true)
+			int divisor = 1;
+			while(divisor <= number / 10)
 			{
-				int linefeed;
+				divisor *= 10;
+			}
+			for(; divisor > 0; divisor /= 10)
+			{
+				buffer.put((byte)('0' + (number / divisor) % 10));
+			}
+		}
+
+		/**
+		 * Writes data to the channel without blocking. Any data that can't be
+		 * written immediately is queued and will be sent by the main server
+		 * thread when the channel is ready.
+		 *
+		 * @param data Data to write (its pooled buffer, if any, is released once
+		 *   written or if the write fails)
+		 * @param finish True if this completes the response
+		 * @return True if all the data was written, false if some was queued
+		 *   (in which case {@link #responseWritten()} will be called once it
+		 *   has been sent, if finish is set)
+		 * @throws IOException If there is an error writing to the channel
+		 */
+		private synchronized boolean write(PendingWrite data, boolean finish)
+			throws IOException
+		{
+			if(closed.get())
+			{
+				data.release();
+				throw new ClosedChannelException();
+			}
+			if(outbound.isEmpty())
+			{
+				try
+				{
+					data.write(channel);
+				}
+				catch(IOException e)
+				{
+					data.release();
+					throw e;
+				}
+				if(!data.hasRemaining())
+				{
+					data.release();
+					return true;
+				}
+				serverThread.queueWrite(this);
+			}
+			outbound.addLast(data);
+			if(finish)
+			{
+				finishAfterWrite = true;
+			}
+			return false;
+		}
+
+		/**
+		 * Called on the server thread when the channel is ready for
+		 * writing. Sends as much queued data as possible.
+		 */
+		private void flush()
+		{
+			synchronized(this)
+			{
+				try
+				{
+					while(!outbound.isEmpty())
+					{
+						PendingWrite data = outbound.getFirst();
+						if(data.write(channel) > 0)
+						{
+							lastAction = System.currentTimeMillis();
+						}
+						if(data.hasRemaining())
+						{
+							// Socket buffer is full again; wait for next OP_WRITE
+							return;
+						}
+						outbound.removeFirst();
+						data.release();
+					}
+				}
+				catch(IOException e)
+				{
+					for(PendingWrite pending : outbound)
+					{
+						pending.release();
+					}
+					outbound.clear();
+					finishAfterWrite = false;
+					writeFailed(e);
+					return;
+				}
+
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				if(!finishAfterWrite)
+				{
+					return;
+				}
+				finishAfterWrite = false;
+			}
+			responseWritten();
+		}
+
+		/**
+		 * Called once a response has been completely written. Closes the
+		 * connection or gets ready for the next request.
+		 */
+		private void responseWritten()
+		{
+			if(keepAlive)
+			{
+				requestComplete();
+			}
+			else
+			{
+				close();
+			}
+		}
+
+		/**
+		 * Logs a write error and closes the connection.
+		 * @param e Exception
+		 */
+		private void writeFailed(IOException e)
+		{
+			if(e instanceof ClosedChannelException)
+			{
+				getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,
+					"ERROR " + this + " User cancelled request");
+			}
+			else
+			{
+				getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,
+					"ERROR " + this + " Error writing data", e);
+			}
+			close();
+		}
+
+		/**
+		 * Called on the server thread to start listening for OP_WRITE
+		 * after data has been queued.
+		 */
+		private void startWriting()
+		{
+			if(closed.get() || !key.isValid())
+			{
+				return;
+			}
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		}
+
+		private void read()
+		{
+			if(buffer == null)
+			{
+				buffer = readBuffers.acquire();
+			}
+			boolean newRequest = buffer.position() == 0;
+			int read;
+			try
+			{
+				read = channel.read(buffer);
+			}
+			catch(IOException e)
+			{
+				// Connection got closed, or something else went wrong
+				close();
+				return;
+			}
+			if(read == -1)
+			{
+				close();
+				return;
+			}
+			if(read == 0)
+			{
+				releaseIfEmpty();
+				return;
+			}
+			lastAction = System.currentTimeMillis();
+
+			// Pipelined requests wait in the buffer until the current response has
+			// been sent; if the buffer fills up, stop reading for now
+			if(requestInProgress)
+			{
+				if(!buffer.hasRemaining())
+				{
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+				}
+				return;
+			}
+
+			if(newRequest)
+			{
+				startTime = lastAction;
+			}
+			processBuffer();
+		}
+
+		/**
+		 * Returns the read buffer to the pool if it has no data in.
+		 */
+		private void releaseIfEmpty()
+		{
+			if(buffer != null && buffer.position() == 0)
+			{
+				readBuffers.release(buffer);
+				buffer = null;
+			}
+		}
+
+		/**
+		 * Removes data from the start of the read buffer.
+		 * @param count Number of bytes that have been dealt with
+		 */
+		private void consume(int count)
+		{
+			headerScanned = 0;
+			buffer.flip();
+			buffer.position(count);
+			buffer.compact();
+		}
+
+		/**
+		 * Handles data that has been read into the buffer.
+		 */
+		private void processBuffer()
+		{
+			// Read buffers are heap buffers, so the data can be processed in place
+			int bufferPos = buffer.position();
+			byte[] array = buffer.array();
+
+			// Might this be another server introducing itself?
+			if(!otherServer && bufferPos > 0 && array[0] == '*')
+			{
+				if(!getConfig().isOtherServer(channel.socket().getInetAddress()))
+				{
+					getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,	"SECURITY "
+						+ this + " Remote server connection from disallowed IP");
+					close();
+					return;
+				}
+
+				otherServer = true;
+			}
+
+			if(otherServer)
+			{
+				handleServer(array, bufferPos);
+			}
+			else
+			{
+				handleUser(array, bufferPos);
+			}
+			releaseIfEmpty();
+		}
+
+		/**
+		 * User communication follows HTTP.
+		 *
+		 * @param array Data buffer
+		 * @param bufferPos Length of buffer that is filled
+		 */
+		private void handleUser(byte[] array, int bufferPos)
+		{
+			int headerEnd = HttpRequestParser.findHeaderEnd(array, headerScanned,
+				bufferPos);
+			if(headerEnd != -1)
+			{
+				HttpRequestParser parser = serverThread.parser;
+				if(!parser.parse(array, headerEnd))
+				{
+					getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL, "SECURITY "
+						+ this + " Invalid request line: " + parser.getRequestLine(array));
+					close();
+					return;
+				}
+
+				String ipAddress = parser.getIpAddress(array);
+				if(ipAddress != null)
+				{
+					hostAddress = ipAddress;
+				}
+				keepAlive = parser.isKeepAlive(array);
+				acceptsGzip = parser.acceptsGzip(array);
+				lastEventId = parser.getLastEventId(array);
+				byte[] target = parser.getTarget(array);
+
+				// Remove this request from the buffer, keeping anything after it
+				// (pipelined requests)
+				consume(headerEnd);
+
+				requestInProgress = true;
+				synchronized(this)
+				{
+					responseSent = false;
+				}
+				receivedRequest(target);
+			}
+			else
+			{
+				// Not received valid request yet. If we've received the full buffer,
+				// give up on it.
+				if(bufferPos == buffer.capacity())
+				{
+					getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL, "SECURITY "
+						+ this + " Received large invalid request");
+					close();
+					return;
+				}
+
+				// Next time, carry on searching from here
+				headerScanned = bufferPos;
+			}
+		}
+
+		/**
+		 *
+		 * @param array Data buffer
+		 * @param bufferPos Length of buffer that is filled
+		 */
+		private void handleServer(byte[] array, int bufferPos)
+		{
+			int pos = 0;
+			while(true)
+			{
+				int linefeed;
 				for(linefeed = pos; linefeed < bufferPos; linefeed++)
 				{
 					if(array[linefeed] == '\n')
@@ -566,8 +1024,7 @@ public final class HttpServer extends HawthornObject
 				if(linefeed == bufferPos)
 				{
 					// Clean up the buffer to remove used data.
-					System.arraycopy(array, pos, array, 0, bufferPos - pos);
-					buffer.position(bufferPos - pos);
+					consume(pos);
 
 					// Exit
 					return;
@@ -644,22 +1101,66 @@ public final class HttpServer extends HawthornObject
 			return hostAddress;
 		}
 
-		private void receivedRequest(String request)
+		private void receivedRequest(byte[] request)
 		{
-			getLogger().log(Logger.SYSTEM_LOG, Logger.Level.DETAIL,
-				"REQUEST " + this + " " + request);
+			if(getLogger().isLogged(Logger.Level.DETAIL))
+			{
+				getLogger().log(Logger.SYSTEM_LOG, Logger.Level.DETAIL,
+					"REQUEST " + this + " " + HttpEvent.getText(request));
+			}
 			getEventHandler().addEvent(new HttpEvent(getApp(), request, this));
 		}
 
+		/**
+		 * Called (from an event thread) once the response to a keep-alive
+		 * request has been sent. The server thread will then continue
+		 * with any pipelined request.
+		 */
+		private void requestComplete()
+		{
+			lastAction = System.currentTimeMillis();
+			serverThread.queueResume(this);
+		}
+
+		/**
+		 * Called on the server thread after a keep-alive response has been
+		 * sent, to start handling the next request.
+		 */
+		private void resume()
+		{
+			if(closed.get() || !key.isValid())
+			{
+				return;
+			}
+			requestInProgress = false;
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			if(buffer != null && buffer.position() > 0)
+			{
+				startTime = System.currentTimeMillis();
+				processBuffer();
+			}
+		}
+
 		private boolean checkTimeout(long now)
 		{
-			if(!serverAuthenticated && now - lastAction > CONNECTION_TIMEOUT)
+			if(serverAuthenticated)
+			{
+				return false;
+			}
+			if(now - lastAction > CONNECTION_TIMEOUT)
 			{
 				getLogger().log(Logger.SYSTEM_LOG, Logger.Level.NORMAL,
 					"SECURITY " + this + " (timeout)");
 				close();
 				return true;
 			}
+			else if(!requestInProgress && now - lastAction > KEEPALIVE_TIMEOUT)
+			{
+				getLogger().log(Logger.SYSTEM_LOG, Logger.Level.DETAIL,
+					"CLOSE " + this + " (idle)");
+				close();
+				return true;
+			}
 			else
 			{
 				return false;
@@ -668,163 +1169,470 @@ public final class HttpServer extends HawthornObject
 	}
 
 
-	private void serverThread()
+	/**
+	 * Response data waiting to be written, with the pooled buffer (if any)
+	 * that should be returned once it has been sent.
+	 */
+	private class PendingWrite
 	{
-		long lastCleanup = System.currentTimeMillis();
-		long lastTime = lastCleanup;
-		int localTimeInSelect = 0, localTimeBusy = 0;
+		private ByteBuffer[] data;
+		private ByteBuffer pooled;
 
-		try
+		/**
+		 * @param data Buffers to write in order
+		 * @param pooled Buffer from header pool to release after, or null
+		 */
+		PendingWrite(ByteBuffer[] data, ByteBuffer pooled)
 		{
-			while(true)
-			{
-				cancelKeys();
-
-				long beforeSelect = System.currentTimeMillis();
-				localTimeBusy += (int)(beforeSelect - lastTime);
+			this.data = data;
+			this.pooled = pooled;
+		}
 
-				selector.select(5000);
+		/**
+		 * Writes as much as possible (gathering write).
+		 * @param channel Channel
+		 * @return Number of bytes written
+		 * @throws IOException Any error
+		 */
+		long write(SocketChannel channel) throws IOException
+		{
+			return channel.write(data);
+		}
 
-				lastTime = System.currentTimeMillis();
-				localTimeInSelect += (int)(lastTime - beforeSelect);
-				if(close)
+		/** @return True if there is still data to write */
+		boolean hasRemaining()
+		{
+			// Buffers are written in order, so check from the end
+			for(int i = data.length - 1; i >= 0; i--)
+			{
+				if(data[i].hasRemaining())
 				{
-					closed = true;
-					return;
+					return true;
 				}
+			}
+			return false;
+		}
+
+		/** Returns the pooled buffer (only call once). */
+		void release()
+		{
+			if(pooled != null)
+			{
+				headerBuffers.release(pooled);
+				pooled = null;
+			}
+		}
+	}
+
+	/**
+	 * Thread with its own selector that handles a share of the connections.
+	 * There is one of these for each configured selector thread. Each
+	 * connection is attached to its selection key; other threads pass requests
+	 * to this thread using lock-free queues, then wake the selector.
+	 */
+	private final class ServerThread extends Thread
+	{
+		private Selector selector;
+
+		private ConcurrentLinkedQueue<SelectionKey> keysToClose =
+			new ConcurrentLinkedQueue<SelectionKey>();
+		private AtomicInteger keysToCloseSize = new AtomicInteger();
+
+		private ConcurrentLinkedQueue<Connection> connectionsToResume =
+			new ConcurrentLinkedQueue<Connection>();
+
+		private ConcurrentLinkedQueue<Connection> connectionsToWrite =
+			new ConcurrentLinkedQueue<Connection>();
+
+		/** Channels accepted by the acceptor thread, waiting to be registered */
+		private ConcurrentLinkedQueue<SocketChannel> channelsToAdd =
+			new ConcurrentLinkedQueue<SocketChannel>();
+
+		/** Parser for request headers (only used on this thread) */
+		private HttpRequestParser parser =
+			new HttpRequestParser(getConfig().getIpHeader());
+
+		/** Number of connections (only changed on this thread) */
+		private volatile int connectionCount;
 
-				for(SelectionKey key : selector.selectedKeys())
+		private Object timeLogSynch = new Object();
+
+		private int timeBusy, timeInSelect;
+
+		private volatile boolean closed;
+
+		/**
+		 * @param name Thread name
+		 * @throws IOException If the selector can't be opened
+		 */
+		ServerThread(String name) throws IOException
+		{
+			super(name);
+			selector = Selector.open();
+
+			// Increase the server thread priority (this is because there are only
+			// a few server threads versus numerous event threads; and I want the
+			// recorded time from connect to HTTP result handling to be as accurate
+			// as possible).
+			setPriority(Thread.MAX_PRIORITY);
+		}
+
+		@Override
+		public void run()
+		{
+			long lastCleanup = System.currentTimeMillis();
+			long lastTime = lastCleanup;
+			int localTimeInSelect = 0, localTimeBusy = 0;
+
+			try
+			{
+				while(true)
 				{
-					if((key.readyOps() & SelectionKey.OP_ACCEPT) == SelectionKey.OP_ACCEPT)
+					addChannels();
+					cancelKeys();
+					resumeConnections();
+					startWriting();
+
+					long beforeSelect = System.currentTimeMillis();
+					localTimeBusy += (int)(beforeSelect - lastTime);
+
+					selector.select(5000);
+
+					lastTime = System.currentTimeMillis();
+					localTimeInSelect += (int)(lastTime - beforeSelect);
+					if(close)
 					{
-						try
+						closed = true;
+						return;
+					}
+
+					for(SelectionKey key : selector.selectedKeys())
+					{
+						if((key.readyOps() & SelectionKey.OP_ACCEPT) == SelectionKey.OP_ACCEPT)
 						{
-							Socket newSocket = server.socket().accept();
-							newSocket.getChannel().configureBlocking(false);
-							SelectionKey newKey =
-								newSocket.getChannel().register(selector, SelectionKey.OP_READ);
-							Connection newConnection = new Connection(newKey);
-							synchronized (connections)
+							try
 							{
-								connections.put(newKey, newConnection);
+								SocketChannel newChannel = server.accept();
+								if(newChannel != null)
+								{
+									register(newChannel);
+								}
 							}
+							catch(IOException e)
+							{
+								getLogger().log(Logger.SYSTEM_LOG, Logger.Level.ERROR,
+									"ERROR Failed to accept connection", e);
+							}
+							continue;
 						}
-						catch(IOException e)
+
+						Connection c = (Connection)key.attachment();
+						if((key.readyOps() & SelectionKey.OP_WRITE) == SelectionKey.OP_WRITE
+							&& !c.isClosed())
 						{
-							getLogger().log(Logger.SYSTEM_LOG, Logger.Level.ERROR,
-								"ERROR Failed to accept connection", e);
+							c.flush();
+						}
+						if((key.readyOps() & SelectionKey.OP_READ) == SelectionKey.OP_READ
+							&& !c.isClosed())
+						{
+							c.read();
 						}
 					}
-					if((key.readyOps() & SelectionKey.OP_READ) == SelectionKey.OP_READ)
+					selector.selectedKeys().clear();
+
+					if(lastTime - lastCleanup > CLEANUP_EVERY)
 					{
-						Connection c;
-						synchronized (connections)
+						lastCleanup = lastTime;
+						for(SelectionKey key : selector.keys())
 						{
-							c = connections.get(key);
-							if(c == null)
+							Connection connection = (Connection)key.attachment();
+							if(connection != null && !connection.isClosed())
 							{
-								continue;
+								connection.checkTimeout(lastTime);
 							}
 						}
-						c.read();
 					}
-				}
-				selector.selectedKeys().clear();
 
-				if(lastTime - lastCleanup > CLEANUP_EVERY)
-				{
-					lastCleanup = lastTime;
-					LinkedList<Connection> consider;
-					synchronized (connections)
+					if(localTimeBusy + localTimeInSelect > LOGTIME_EVERY)
 					{
-						consider = new LinkedList<Connection>(connections.values());
-					}
-					for(Connection connection : consider)
-					{
-						connection.checkTimeout(lastTime);
+						synchronized (timeLogSynch)
+						{
+							timeBusy += localTimeBusy;
+							timeInSelect += localTimeInSelect;
+							localTimeBusy = 0;
+							localTimeInSelect = 0;
+						}
 					}
 				}
+			}
+			catch(Throwable t)
+			{
+				getLogger().log(Logger.SYSTEM_LOG, Logger.Level.FATAL_ERROR,
+					"ERROR Fatal error in " + getName(), t);
+				// If a server thread crashed, better exit the whole server
+				closed = true;
+				getApp().close();
+			}
+		}
+
+		/**
+		 * Registers a newly-accepted channel with this thread's selector. Must be
+		 * called on this thread.
+		 * @param newChannel New channel
+		 * @throws IOException If there is an error registering the channel
+		 */
+		private void register(SocketChannel newChannel) throws IOException
+		{
+			newChannel.configureBlocking(false);
+			SelectionKey newKey = newChannel.register(selector, SelectionKey.OP_READ);
+			new Connection(this, newKey);
+			connectionCount++;
+		}
 
-				if(localTimeBusy + localTimeInSelect > LOGTIME_EVERY)
+		/**
+		 * Passes a newly-accepted channel to this thread (called from the
+		 * acceptor thread).
+		 * @param newChannel New channel
+		 */
+		void addChannel(SocketChannel newChannel)
+		{
+			channelsToAdd.add(newChannel);
+			selector.wakeup();
+		}
+
+		private void addChannels()
+		{
+			while(true)
+			{
+				SocketChannel newChannel = channelsToAdd.poll();
+				if(newChannel == null)
 				{
-					synchronized (timeLogSynch)
-					{
-						timeBusy += localTimeBusy;
-						timeInSelect += localTimeInSelect;
-						localTimeBusy = 0;
-						localTimeInSelect = 0;
-					}
+					return;
+				}
+				try
+				{
+					register(newChannel);
+				}
+				catch(IOException e)
+				{
+					getLogger().log(Logger.SYSTEM_LOG, Logger.Level.ERROR,
+						"ERROR Failed to register connection", e);
+					queueChannelClose(newChannel);
 				}
 			}
 		}
-		catch(Throwable t)
+
+		private void cancelKeys()
 		{
-			getLogger().log(Logger.SYSTEM_LOG, Logger.Level.FATAL_ERROR,
-				"ERROR Fatal error in main server thread", t);
-			// If the main thread crashed, better exit the whole server
-			closed = true;
-			getApp().close();
+			while(true)
+			{
+				SelectionKey key = keysToClose.poll();
+				if(key == null)
+				{
+					return;
+				}
+				keysToCloseSize.decrementAndGet();
+				key.cancel();
+				((Connection)key.attachment()).releaseBuffers();
+				key.attach(null);
+				connectionCount--;
+				queueChannelClose(key.channel());
+			}
 		}
-	}
 
-	private void cancelKeys()
-	{
-		boolean some = false;
-		synchronized (connections)
+		private void resumeConnections()
 		{
-			while(!keysToClose.isEmpty())
+			while(true)
 			{
-				SelectionKey key = keysToClose.removeFirst();
-				key.cancel();
-				channelsToClose.add(key.channel());
-				some = true;
+				Connection connection = connectionsToResume.poll();
+				if(connection == null)
+				{
+					return;
+				}
+				connection.resume();
+			}
+		}
+
+		/**
+		 * Adds a connection to the list which will be resumed after its
+		 * keep-alive response, and wakes the selector.
+		 * @param connection Connection that has finished a response
+		 */
+		void queueResume(Connection connection)
+		{
+			connectionsToResume.add(connection);
+			selector.wakeup();
+		}
+
+		/**
+		 * Adds a connection to the list which will start watching for OP_WRITE,
+		 * and wakes the selector.
+		 * @param connection Connection that has queued data
+		 */
+		void queueWrite(Connection connection)
+		{
+			connectionsToWrite.add(connection);
+			selector.wakeup();
+		}
+
+		private void startWriting()
+		{
+			while(true)
+			{
+				Connection connection = connectionsToWrite.poll();
+				if(connection == null)
+				{
+					return;
+				}
+				connection.startWriting();
 			}
 		}
-		if(some)
+
+		/**
+		 * Adds the key to a list which this thread will cancel, and wakes the
+		 * selector. Once it is cancelled, the channel will be closed in a
+		 * separate thread (in case it blocks).
+		 * @param key Key to cancel
+		 */
+		void closeChannel(SelectionKey key)
+		{
+			keysToClose.add(key);
+			keysToCloseSize.incrementAndGet();
+			selector.wakeup();
+		}
+
+		/** @return Number of connections handled by this thread */
+		int getConnectionCount()
+		{
+			return connectionCount;
+		}
+
+		/** @return Number of keys waiting to be cancelled */
+		int getCloseQueueSize()
 		{
-			synchronized (closeSynch)
+			return keysToCloseSize.get();
+		}
+
+		/** @return Busy percentage since last call */
+		int getBusyPercent()
+		{
+			synchronized(timeLogSynch)
 			{
-				closeSynch.notify();
+				int total = timeBusy + timeInSelect;
+				int percent = total==0 ? 0 : (timeBusy*100 + total/2) / total;
+				timeBusy = 0;
+				timeInSelect = 0;
+				return percent;
 			}
 		}
 	}
 
-	private void closeThread()
+	/**
+	 * Thread that accepts new connections and hands them to the server
+	 * threads in turn. Only used when there is more than one server thread.
+	 */
+	private final class AcceptorThread extends Thread
 	{
-		try
+		private Selector selector;
+
+		private int next;
+
+		private volatile boolean closed;
+
+		/**
+		 * @throws IOException If the selector can't be opened
+		 */
+		AcceptorThread() throws IOException
 		{
-			while(true)
+			super("Connection acceptor thread");
+			selector = Selector.open();
+			server.register(selector, SelectionKey.OP_ACCEPT);
+			setPriority(Thread.MAX_PRIORITY);
+		}
+
+		@Override
+		public void run()
+		{
+			try
 			{
-				// Wait for notification
-				synchronized (closeSynch)
+				while(true)
 				{
-					try
-					{
-						if(!close)
-						{
-							closeSynch.wait();
-						}
-					}
-					catch(InterruptedException e)
+					selector.select(5000);
+					if(close)
 					{
+						closed = true;
+						return;
 					}
+					selector.selectedKeys().clear();
 
-					if(close)
+					while(true)
 					{
-						return;
+						SocketChannel newChannel;
+						try
+						{
+							newChannel = server.accept();
+						}
+						catch(IOException e)
+						{
+							getLogger().log(Logger.SYSTEM_LOG, Logger.Level.ERROR,
+								"ERROR Failed to accept connection", e);
+							break;
+						}
+						if(newChannel == null)
+						{
+							break;
+						}
+						serverThreads[next].addChannel(newChannel);
+						next = (next + 1) % serverThreads.length;
 					}
 				}
+			}
+			catch(Throwable t)
+			{
+				getLogger().log(Logger.SYSTEM_LOG, Logger.Level.FATAL_ERROR,
+					"ERROR Fatal error in " + getName(), t);
+				closed = true;
+				getApp().close();
+			}
+		}
+	}
 
-				// Close all channels
-				SelectableChannel[] channels;
-				synchronized (connections)
+	/**
+	 * Adds a channel to the list that the closer thread will close.
+	 * @param channel Channel to close
+	 */
+	private void queueChannelClose(SelectableChannel channel)
+	{
+		channelsToClose.add(channel);
+		channelsToCloseSize.incrementAndGet();
+		LockSupport.unpark(closerThread);
+	}
+
+	private void closeThread()
+	{
+		try
+		{
+			while(true)
+			{
+				// Wait for notification
+				if(channelsToClose.isEmpty() && !close)
 				{
-					channels = channelsToClose.toArray(
-						new SelectableChannel[channelsToClose.size()]);
-					channelsToClose.clear();
+					LockSupport.park();
 				}
-				for(SelectableChannel channel : channels)
+				if(close)
 				{
+					return;
+				}
+
+				// Close all channels
+				while(true)
+				{
+					SelectableChannel channel = channelsToClose.poll();
+					if(channel == null)
+					{
+						break;
+					}
+					channelsToCloseSize.decrementAndGet();
 					try
 					{
 						((SocketChannel)channel).socket().shutdownOutput();
@@ -847,17 +1655,34 @@ public final class HttpServer extends HawthornObject
 	}
 
 	/**
-	 * Adds the key to a list which the selector thread will cancel. Once it
-	 * is cancelled, the channel will be closed in a separate thread (in case
-	 * it blocks).
-	 * @param key Key to cancel
+	 * @param text Text
+	 * @return Text in US-ASCII (other characters become '?')
 	 */
-	private void closeChannel(SelectionKey key)
+	static byte[] getASCII(String text)
 	{
-		synchronized (connections)
+		try
 		{
-			keysToClose.add(key);
-			connections.remove(key);
+			return text.getBytes("US-ASCII");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new Error("Basic encoding not supported?!", e);
+		}
+	}
+
+	/**
+	 * @param text Text
+	 * @return Text in UTF-8
+	 */
+	static byte[] getUTF8(String text)
+	{
+		try
+		{
+			return text.getBytes("UTF-8");
+		}
+		catch(UnsupportedEncodingException e)
+		{
+			throw new Error("Basic encoding not supported?!", e);
 		}
 	}
 
@@ -867,20 +1692,38 @@ public final class HttpServer extends HawthornObject
 	public void close()
 	{
 		close = true;
-		while(!closed)
+		if(acceptorThread != null)
 		{
-			try
+			acceptorThread.selector.wakeup();
+			while(!acceptorThread.closed)
 			{
-				Thread.sleep(100);
+				try
+				{
+					Thread.sleep(100);
+				}
+				catch(InterruptedException ie)
+				{
+				}
 			}
-			catch(InterruptedException ie)
+		}
+		for(ServerThread thread : serverThreads)
+		{
+			thread.selector.wakeup();
+			while(!thread.closed)
 			{
+				try
+				{
+					Thread.sleep(100);
+				}
+				catch(InterruptedException ie)
+				{
+				}
 			}
 		}
 
+		LockSupport.unpark(closerThread);
 		synchronized (closeSynch)
 		{
-			closeSynch.notifyAll();
 			while(!closeThreadClosed)
 			{
 				try
@@ -896,9 +1739,11 @@ public final class HttpServer extends HawthornObject
 
 	public int getValue()
 	{
-		synchronized (connections)
+		int total = 0;
+		for(ServerThread thread : serverThreads)
 		{
-			return connections.size();
+			total += thread.getConnectionCount();
 		}
+		return total;
 	}
 }
@@ -55,6 +55,12 @@ public class JoinMessage extends Message
 		return "";
 	}
 
+	@Override
+	protected String getAdditionalJSON(boolean trusted)
+	{
+		return "";
+	}
+
 	@Override
 	protected String getAdditionalLog()
 	{
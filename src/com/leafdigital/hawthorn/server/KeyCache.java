@@ -0,0 +1,186 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+
+import com.leafdigital.hawthorn.util.Auth;
+
+/**
+ * Cache of keys that have already been verified, shared by all threads.
+ * A user's page sends the same key with every request until it expires,
+ * so most requests can skip the SHA-1 check. Entries are dropped once the
+ * key time has passed.
+ */
+class KeyCache extends HawthornObject
+{
+	/** Maximum number of cached keys */
+	private final static int MAX_ENTRIES = 50000;
+	/** Number of keys left after the cache fills up and is trimmed */
+	private final static int LOW_WATER_ENTRIES = MAX_ENTRIES * 3 / 4;
+
+	private final static String STATISTIC_KEY_CACHE_SIZE = "KEY_CACHE_SIZE";
+	private final static String STATISTIC_KEY_CACHE_HIT_PERCENT =
+		"KEY_CACHE_HIT_PERCENT";
+
+	/** Verified keys, indexed by key */
+	private ConcurrentHashMap<String, VerifiedKey> keys =
+		new ConcurrentHashMap<String, VerifiedKey>();
+
+	/** Hits and misses since statistic was last read */
+	private AtomicInteger hits = new AtomicInteger(),
+		misses = new AtomicInteger();
+
+	/** True while a thread is trimming the cache */
+	private AtomicBoolean trimming = new AtomicBoolean();
+
+	/** Details that were checked against a key. */
+	private static final class VerifiedKey
+	{
+		private final String channel, user, displayName, extra;
+		private final EnumSet<Auth.Permission> permissions;
+		private final long keyTime;
+
+		private VerifiedKey(String channel, String user, String displayName,
+			String extra, EnumSet<Auth.Permission> permissions, long keyTime)
+		{
+			this.channel = channel;
+			this.user = user;
+			this.displayName = displayName;
+			this.extra = extra;
+			this.permissions = permissions.clone();
+			this.keyTime = keyTime;
+		}
+
+		private boolean matches(String channel, String user, String displayName,
+			String extra, EnumSet<Auth.Permission> permissions, long keyTime)
+		{
+			return this.keyTime == keyTime && this.channel.equals(channel)
+				&& this.user.equals(user) && this.displayName.equals(displayName)
+				&& this.extra.equals(extra) && this.permissions.equals(permissions);
+		}
+	}
+
+	/** @param app Hawthorn app main object */
+	KeyCache(Hawthorn app)
+	{
+		super(app);
+
+		getStatistics().registerInstantStatistic(STATISTIC_KEY_CACHE_SIZE,
+			new Statistics.InstantStatisticHandler()
+			{
+				public int getValue()
+				{
+					return keys.size();
+				}
+			});
+		getStatistics().registerInstantStatistic(STATISTIC_KEY_CACHE_HIT_PERCENT,
+			new Statistics.InstantStatisticHandler()
+			{
+				public int getValue()
+				{
+					int hit = hits.getAndSet(0), miss = misses.getAndSet(0);
+					if(hit + miss == 0)
+					{
+						return 0;
+					}
+					return (int)(hit * 100L / (hit + miss));
+				}
+			});
+	}
+
+	/**
+	 * Checks whether the given details have already been verified with this
+	 * key, and the key hasn't expired.
+	 * @param key Key
+	 * @param channel Channel name
+	 * @param user User name
+	 * @param displayName User display name
+	 * @param extra Extra user details
+	 * @param permissions User permissions
+	 * @param keyTime Key expiry time
+	 * @param now Current time
+	 * @return True if key is known to be valid
+	 */
+	boolean isVerified(String key, String channel, String user,
+		String displayName, String extra, EnumSet<Auth.Permission> permissions,
+		long keyTime, long now)
+	{
+		VerifiedKey verified = keys.get(key);
+		if(verified != null)
+		{
+			if(verified.keyTime < now)
+			{
+				keys.remove(key, verified);
+			}
+			else if(verified.matches(channel, user, displayName, extra, permissions,
+				keyTime))
+			{
+				hits.incrementAndGet();
+				return true;
+			}
+		}
+		misses.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Remembers a key that has been checked and found valid.
+	 * @param key Key
+	 * @param channel Channel name
+	 * @param user User name
+	 * @param displayName User display name
+	 * @param extra Extra user details
+	 * @param permissions User permissions
+	 * @param keyTime Key expiry time
+	 * @param now Current time
+	 */
+	void addVerified(String key, String channel, String user,
+		String displayName, String extra, EnumSet<Auth.Permission> permissions,
+		long keyTime, long now)
+	{
+		if(keys.size() >= MAX_ENTRIES && trimming.compareAndSet(false, true))
+		{
+			// Throw away expired keys, plus others if necessary, until the cache
+			// is down to the low-water mark. Trimming well below the limit means
+			// the next full pass doesn't happen for many more additions.
+			try
+			{
+				int excess = keys.size() - LOW_WATER_ENTRIES;
+				for(Iterator<VerifiedKey> i = keys.values().iterator(); i.hasNext();)
+				{
+					if(i.next().keyTime < now || excess > 0)
+					{
+						i.remove();
+						excess--;
+					}
+				}
+			}
+			finally
+			{
+				trimming.set(false);
+			}
+		}
+		keys.put(key, new VerifiedKey(channel, user, displayName, extra,
+			permissions, keyTime));
+	}
+}
@@ -59,6 +59,12 @@ public class LeaveMessage extends Message
 		return ",timeout:" + timeout;
 	}
 
+	@Override
+	protected String getAdditionalJSON(boolean trusted)
+	{
+		return ",\"timeout\":" + timeout;
+	}
+
 	@Override
 	protected String getAdditionalLog()
 	{
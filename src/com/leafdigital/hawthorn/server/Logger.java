@@ -318,6 +318,16 @@ public final class Logger
 		}
 	}
 
+	/**
+	 * @param level Level of logging
+	 * @return True if lines at this level are logged (use to avoid building
+	 *   lines that will be thrown away)
+	 */
+	public boolean isLogged(Level level)
+	{
+		return level.isAtLeast(showLevel);
+	}
+
 	/**
 	 * Logs a line of text.
 	 *
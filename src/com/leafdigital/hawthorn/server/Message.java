@@ -43,6 +43,14 @@ public abstract class Message
 
 	private String channel, user, userMasked, displayName, extra, ip;
 
+	/**
+	 * Cached formats, built the first time they're needed. Messages don't
+	 * change (except for setTime) so the same strings can be reused for every
+	 * request during the message's lifetime.
+	 */
+	private volatile String jsTrusted, jsUntrusted, jsonTrusted, jsonUntrusted,
+		logFormat, serverFormat;
+
 	/**
 	 * Initialises all message types.
 	 * @throws StartupException If an error occurs during initialisation (this
@@ -132,9 +140,48 @@ public abstract class Message
 	 */
 	public String getJSFormat(boolean trusted)
 	{
-		return "{type:'" + getType() + "',time:" + time + ",user:'"
-		  + (trusted ? user : userMasked)	+ "',displayName:'" + JS.esc(displayName)
-		  + "',extra:'" + JS.esc(extra) + "'" + getAdditionalJS(trusted) + "}";
+		String result = trusted ? jsTrusted : jsUntrusted;
+		if(result == null)
+		{
+			result = "{type:'" + getType() + "',time:" + time + ",user:'"
+			  + (trusted ? user : userMasked)	+ "',displayName:'" + JS.esc(displayName)
+			  + "',extra:'" + JS.esc(extra) + "'" + getAdditionalJS(trusted) + "}";
+			if(trusted)
+			{
+				jsTrusted = result;
+			}
+			else
+			{
+				jsUntrusted = result;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param trusted True if user gets to see real user name etc
+	 * @return JSON version of message (same fields as the JS version)
+	 */
+	public String getJSONFormat(boolean trusted)
+	{
+		String result = trusted ? jsonTrusted : jsonUntrusted;
+		if(result == null)
+		{
+			result = "{\"type\":\"" + getType() + "\",\"time\":" + time
+				+ ",\"user\":\"" + (trusted ? user : userMasked)
+				+ "\",\"displayName\":\"" + JS.escJSON(displayName)
+				+ "\",\"extra\":\"" + JS.escJSON(extra) + "\""
+				+ getAdditionalJSON(trusted) + "}";
+			if(trusted)
+			{
+				jsonTrusted = result;
+			}
+			else
+			{
+				jsonUntrusted = result;
+			}
+		}
+		return result;
 	}
 
 	/**
@@ -143,12 +190,26 @@ public abstract class Message
 	 */
 	public String getLogFormat()
 	{
-		return getType() + ' ' + ip + ' ' + user + " \"" + displayName
-			+  "\"" + getAdditionalLog();
+		if(logFormat == null)
+		{
+			logFormat = getType() + ' ' + ip + ' ' + user + " \"" + displayName
+				+  "\"" + getAdditionalLog();
+		}
+		return logFormat;
 	}
 
 	/** @return Version of message that will be sent to other servers */
-	public String getServerFormat()
+	public final String getServerFormat()
+	{
+		if(serverFormat == null)
+		{
+			serverFormat = buildServerFormat();
+		}
+		return serverFormat;
+	}
+
+	/** @return Version of message that will be sent to other servers */
+	protected String buildServerFormat()
 	{
 		return getType() + " " + channel + " " + ip + " " + user + " \""
 			+ displayName + "\" \"" + extra + "\"" + getAdditionalLog();
@@ -160,6 +221,12 @@ public abstract class Message
 	 */
 	protected abstract String getAdditionalJS(boolean trusted);
 
+	/**
+	 * @param trusted True if user gets to see real user name etc
+	 * @return Additional data to go into the JSON message representation
+	 */
+	protected abstract String getAdditionalJSON(boolean trusted);
+
 	/** @return Additional data to go into log message representation */
 	protected abstract String getAdditionalLog();
 
@@ -176,13 +243,20 @@ public abstract class Message
 	public abstract String getType();
 
 	/**
-	 * Sets time. Used only when adjusting time for uniqueness within channel.
+	 * Sets time. Used only when adjusting time for uniqueness within channel,
+	 * before the message is made available to users.
 	 *
 	 * @param time New time
 	 */
 	void setTime(long time)
 	{
 		this.time = time;
+
+		// Only the JavaScript and JSON formats include the time
+		jsTrusted = null;
+		jsUntrusted = null;
+		jsonTrusted = null;
+		jsonUntrusted = null;
 	}
 
 	/**
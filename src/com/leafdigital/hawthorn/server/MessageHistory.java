@@ -0,0 +1,217 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+/**
+ * Messages remembered in a channel, stored oldest first in an array that is
+ * only ever appended to; expiring a message just moves the start along, and
+ * the array is replaced when it fills up. Message times must be strictly
+ * increasing, which allows searching by time. Not synchronized; the channel
+ * handles that, but it can hand out a {@link View} that is safe to read
+ * without locking.
+ */
+final class MessageHistory
+{
+	private final static int INITIAL_SIZE = 16;
+
+	private final static Message[] NO_MESSAGES = {};
+
+	/**
+	 * Array of messages. Entries between start and end are never changed once
+	 * written, so views can share the array.
+	 */
+	private Message[] array = new Message[INITIAL_SIZE];
+
+	/** Index of oldest message */
+	private int start;
+
+	/** Index after newest message */
+	private int end;
+
+	/** View of the current messages, or null if it needs creating */
+	private View view;
+
+	/** @return True if there are no messages */
+	boolean isEmpty()
+	{
+		return start == end;
+	}
+
+	/** @return Oldest message, or null if none */
+	Message getFirst()
+	{
+		return start == end ? null : array[start];
+	}
+
+	/**
+	 * Adds a message at the end.
+	 * @param m Message, which must be newer than the current last message
+	 */
+	void add(Message m)
+	{
+		if(end == array.length)
+		{
+			// Copy current messages to a new array; views keep the old one
+			int size = end - start;
+			Message[] replacement = new Message[Math.max(INITIAL_SIZE, size * 2)];
+			System.arraycopy(array, start, replacement, 0, size);
+			array = replacement;
+			start = 0;
+			end = size;
+		}
+		array[end++] = m;
+		view = null;
+	}
+
+	/**
+	 * Removes the oldest message.
+	 * @return Message that was removed
+	 */
+	Message removeFirst()
+	{
+		Message m = array[start++];
+		if(start == end)
+		{
+			// Start again with a new array so that old messages can be freed
+			array = new Message[INITIAL_SIZE];
+			start = 0;
+			end = 0;
+		}
+		view = null;
+		return m;
+	}
+
+	/** @return View of the messages as they are now */
+	View getView()
+	{
+		if(view == null)
+		{
+			view = new View(array, start, end);
+		}
+		return view;
+	}
+
+	/**
+	 * Unchanging list of messages at a particular time, which can be read
+	 * without locking once it has been safely published.
+	 */
+	static final class View
+	{
+		private final Message[] array;
+		private final int start, end;
+
+		/**
+		 * @param array Array of messages
+		 * @param start Index of oldest message
+		 * @param end Index after newest message
+		 */
+		private View(Message[] array, int start, int end)
+		{
+			this.array = array;
+			this.start = start;
+			this.end = end;
+		}
+
+		/** @return True if there are no messages */
+		boolean isEmpty()
+		{
+			return start == end;
+		}
+
+		/** @return Newest message, or null if none */
+		Message getLast()
+		{
+			return start == end ? null : array[end - 1];
+		}
+
+		/**
+		 * @param then Time
+		 * @return Index of the first message with time after (not including)
+		 *   then, or end if none
+		 */
+		private int indexAfter(long then)
+		{
+			int low = start, high = end;
+			while(low < high)
+			{
+				int mid = (low + high) >>> 1;
+				if(array[mid].getTime() <= then)
+				{
+					low = mid + 1;
+				}
+				else
+				{
+					high = mid;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * Obtains all messages after (but not including) the given time.
+		 * @param then Time
+		 * @param maxNumber Maximum number of messages (or Channel.ANY); if
+		 *   limited, only the newest messages will be retrieved
+		 * @param sayOnly If true, returns only standard SAY messages (not JOIN
+		 *   etc)
+		 * @return Array of messages, empty if none
+		 */
+		Message[] getSince(long then, int maxNumber, boolean sayOnly)
+		{
+			int first = indexAfter(then);
+			if(!sayOnly)
+			{
+				if(maxNumber != Channel.ANY)
+				{
+					first = Math.max(first, end - maxNumber);
+				}
+				if(first == end)
+				{
+					return NO_MESSAGES;
+				}
+				Message[] result = new Message[end - first];
+				System.arraycopy(array, first, result, 0, result.length);
+				return result;
+			}
+
+			// Count backwards to find how many SAY messages will be included
+			int count = 0, from = end;
+			for(int i = end - 1; i >= first
+				&& (maxNumber == Channel.ANY || count < maxNumber); i--)
+			{
+				if(array[i] instanceof SayMessage)
+				{
+					count++;
+					from = i;
+				}
+			}
+
+			Message[] result = new Message[count];
+			for(int i = from, out = 0; out < count; i++)
+			{
+				if(array[i] instanceof SayMessage)
+				{
+					result[out++] = array[i];
+				}
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,196 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Executor with a fixed number of worker threads sharing a lock-free queue.
+ * Idle workers spin briefly before parking, so that under heavy load events
+ * are picked up without any thread having to be woken.
+ */
+class QueueEventExecutor extends HawthornObject implements EventExecutor
+{
+	/** Number of times an idle worker checks the queue before parking */
+	private final static int SPIN_COUNT = 1000;
+
+	private ConcurrentLinkedQueue<Event> queue =
+		new ConcurrentLinkedQueue<Event>();
+	private AtomicInteger queueSize = new AtomicInteger();
+
+	/** Workers that are parked (or about to park) waiting for events */
+	private ConcurrentLinkedQueue<Worker> idle =
+		new ConcurrentLinkedQueue<Worker>();
+
+	private Worker[] workers;
+	private volatile boolean close;
+
+	/**
+	 * Constructs executor and starts threads.
+	 *
+	 * @param app Application main class
+	 * @param threads Number of worker threads
+	 */
+	QueueEventExecutor(Hawthorn app, int threads)
+	{
+		super(app);
+		workers = new Worker[threads];
+		for(int i = 0; i < threads; i++)
+		{
+			workers[i] = new Worker(i);
+		}
+	}
+
+	public void execute(Event e)
+	{
+		queue.add(e);
+		queueSize.incrementAndGet();
+
+		// Wake one parked worker, if there are any
+		Worker waiting = idle.poll();
+		if(waiting != null)
+		{
+			LockSupport.unpark(waiting);
+		}
+	}
+
+	public int getQueueSize()
+	{
+		return queueSize.get();
+	}
+
+	public void close()
+	{
+		close = true;
+		for(Worker worker : workers)
+		{
+			LockSupport.unpark(worker);
+		}
+		for(Worker worker : workers)
+		{
+			while(worker.isAlive())
+			{
+				try
+				{
+					worker.join();
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Next event from queue, or null if none
+	 */
+	private Event poll()
+	{
+		Event e = queue.poll();
+		if(e != null)
+		{
+			queueSize.decrementAndGet();
+		}
+		return e;
+	}
+
+	/** Thread that works on events. */
+	private class Worker extends Thread
+	{
+		Worker(int index)
+		{
+			super("Event thread " + index);
+			start();
+		}
+
+		@Override
+		public void run()
+		{
+			while(true)
+			{
+				Event next = waitForEvent();
+				if(next == null)
+				{
+					return;
+				}
+
+				// Handle event
+				try
+				{
+					next.handle();
+				}
+				catch(Throwable t)
+				{
+					getLogger().log(Logger.SYSTEM_LOG, Logger.Level.ERROR,
+						"Event processing error (" + getName() + ")", t);
+				}
+			}
+		}
+
+		/**
+		 * Waits until there is an event to handle.
+		 *
+		 * @return Event, or null if the executor is closing and the queue is empty
+		 */
+		private Event waitForEvent()
+		{
+			while(true)
+			{
+				// Spin briefly in case something turns up
+				for(int i = 0; i < SPIN_COUNT; i++)
+				{
+					Event e = poll();
+					if(e != null)
+					{
+						return e;
+					}
+				}
+				if(close)
+				{
+					return null;
+				}
+
+				// Register as idle, then check again; either this check sees any event
+				// added before now, or the thread adding it sees us in the idle list
+				idle.add(this);
+				Event e = poll();
+				if(e != null)
+				{
+					if(!idle.remove(this))
+					{
+						// Someone already took us off the idle list to handle an event;
+						// pass that wakeup on so it isn't lost
+						Worker other = idle.poll();
+						if(other != null)
+						{
+							LockSupport.unpark(other);
+						}
+					}
+					return e;
+				}
+
+				LockSupport.park(this);
+				idle.remove(this);
+			}
+		}
+	}
+}
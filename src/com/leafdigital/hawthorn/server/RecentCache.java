@@ -0,0 +1,191 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache of rendered responses to recent requests for one channel. Pages that
+ * show recent messages tend to make exactly the same request over and over,
+ * so the JavaScript is kept and reused until the channel changes. Responses
+ * are kept only for the current channel version; when the channel changes,
+ * they are all thrown away together. Nothing locks, so requests for the
+ * same channel don't wait for each other.
+ */
+class RecentCache
+{
+	/**
+	 * Maximum number of cached responses (different request parameters) for
+	 * each channel version
+	 */
+	private final static int MAX_ENTRIES = 32;
+
+	/** Key identifying the request parameters that affect the response. */
+	static final class Key
+	{
+		private int maxAge, maxNumber, maxNames;
+		private boolean sayOnly, trusted;
+
+		/**
+		 * @param maxAge Maximum age in milliseconds
+		 * @param maxNumber Maximum number of messages (or Channel.ANY)
+		 * @param maxNames Maximum number of names (or Channel.ANY)
+		 * @param sayOnly True if only SAY messages are included
+		 * @param trusted True if user is trusted
+		 */
+		Key(int maxAge, int maxNumber, int maxNames, boolean sayOnly,
+			boolean trusted)
+		{
+			this.maxAge = maxAge;
+			this.maxNumber = maxNumber;
+			this.maxNames = maxNames;
+			this.sayOnly = sayOnly;
+			this.trusted = trusted;
+		}
+
+		/** @return Maximum age in milliseconds */
+		int getMaxAge()
+		{
+			return maxAge;
+		}
+
+		/** @return Maximum number of messages (or Channel.ANY) */
+		int getMaxNumber()
+		{
+			return maxNumber;
+		}
+
+		/** @return Maximum number of names (or Channel.ANY) */
+		int getMaxNames()
+		{
+			return maxNames;
+		}
+
+		/** @return True if only SAY messages are included */
+		boolean isSayOnly()
+		{
+			return sayOnly;
+		}
+
+		/** @return True if user is trusted */
+		boolean isTrusted()
+		{
+			return trusted;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key)obj;
+			return maxAge == other.maxAge && maxNumber == other.maxNumber
+				&& maxNames == other.maxNames && sayOnly == other.sayOnly
+				&& trusted == other.trusted;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (maxAge * 31 + maxNumber) * 31 + maxNames * 4
+				+ (sayOnly ? 2 : 0) + (trusted ? 1 : 0);
+		}
+	}
+
+	/** Cached response. */
+	private static final class CachedResponse
+	{
+		private long expiry;
+		private byte[] data;
+	}
+
+	/** Cached responses for one channel version. */
+	private static final class Generation
+	{
+		private final long version;
+		private final ConcurrentHashMap<Key, CachedResponse> entries =
+			new ConcurrentHashMap<Key, CachedResponse>();
+
+		/** @param version Channel version */
+		private Generation(long version)
+		{
+			this.version = version;
+		}
+	}
+
+	/** Responses for the most recent channel version that has been cached */
+	private volatile Generation current = new Generation(-1);
+
+	/**
+	 * Gets a cached response.
+	 * @param key Request key
+	 * @param version Current channel version
+	 * @param now Current time
+	 * @return Cached response data, or null if there isn't a valid one
+	 */
+	byte[] get(Key key, long version, long now)
+	{
+		Generation generation = current;
+		if(generation.version != version)
+		{
+			return null;
+		}
+		CachedResponse entry = generation.entries.get(key);
+		if(entry == null || entry.expiry <= now)
+		{
+			return null;
+		}
+		return entry.data;
+	}
+
+	/**
+	 * Stores a response.
+	 * @param key Request key
+	 * @param version Channel version before the response was built
+	 * @param expiry Time at which the response will change even if the channel
+	 *   doesn't (because a message becomes too old)
+	 * @param data Response data (must not be changed afterwards)
+	 */
+	void put(Key key, long version, long expiry, byte[] data)
+	{
+		Generation generation = current;
+		if(generation.version != version)
+		{
+			// Versions only go up, so a response built from an older version is
+			// already out of date
+			if(version < generation.version)
+			{
+				return;
+			}
+			generation = new Generation(version);
+			current = generation;
+		}
+		if(generation.entries.size() >= MAX_ENTRIES)
+		{
+			return;
+		}
+		CachedResponse entry = new CachedResponse();
+		entry.expiry = expiry;
+		entry.data = data;
+		generation.entries.put(key, entry);
+	}
+}
@@ -0,0 +1,163 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Builds and caches the parts of HTTP response headers that are the same for
+ * many responses. The buffers returned are read-only duplicates of shared
+ * buffers, so they can be written to any number of connections.
+ */
+final class ResponseHeaders
+{
+	/** How long the 'ages' items will be cached by browser (30 days) */
+	private final static long HOW_LONG_IS_AGES = 30L * 24L * 60L * 60L * 1000L;
+
+	/** Supported HTTP codes */
+	private final static int[] CODES = { 200, 302, 403, 404, 500 };
+	/** Text for supported HTTP codes */
+	private final static String[] CODE_TEXTS =
+	{
+		"OK", "Redirect", "Access denied", "Not found", "Internal server error"
+	};
+
+	private final static String CRLF = "\r\n";
+
+	/** End of header (blank line) */
+	private final static ByteBuffer END = ByteBuffer.wrap(
+		getBytes(CRLF)).asReadOnlyBuffer();
+
+	/**
+	 * Header prefixes for each content type; within each array, index is
+	 * code index * 2 + (keepAlive ? 1 : 0)
+	 */
+	private final static ConcurrentHashMap<String, ByteBuffer[]> prefixes =
+		new ConcurrentHashMap<String, ByteBuffer[]>();
+
+	/** Expires header for the current second */
+	private static volatile Expires expires;
+
+	/** Expires header (followed by end of header) for a particular second. */
+	private static class Expires
+	{
+		private final long second;
+		private final ByteBuffer header;
+
+		private Expires(long second)
+		{
+			this.second = second;
+			SimpleDateFormat sdf = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss");
+			sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+			header = ByteBuffer.wrap(getBytes("Expires: "
+				+ sdf.format(new Date(second * 1000L + HOW_LONG_IS_AGES)) + " GMT"
+				+ CRLF + CRLF)).asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Gets the start of a response header, from the status line up to and
+	 * including "Content-Length: ".
+	 * @param code HTTP code
+	 * @param contentType Content type
+	 * @param keepAlive True if connection stays open after response
+	 * @return Buffer containing header start
+	 * @throws IllegalArgumentException If the HTTP code isn't supported
+	 */
+	static ByteBuffer getPrefix(int code, String contentType, boolean keepAlive)
+		throws IllegalArgumentException
+	{
+		int index = -1;
+		for(int i=0; i<CODES.length; i++)
+		{
+			if(CODES[i] == code)
+			{
+				index = i;
+				break;
+			}
+		}
+		if(index == -1)
+		{
+			throw new IllegalArgumentException("Unsupported HTTP code " + code);
+		}
+
+		ByteBuffer[] forType = prefixes.get(contentType);
+		if(forType == null)
+		{
+			forType = new ByteBuffer[CODES.length * 2];
+			for(int i=0; i<forType.length; i++)
+			{
+				forType[i] = ByteBuffer.wrap(getBytes("HTTP/1.1 " + CODES[i / 2] + " "
+					+ CODE_TEXTS[i / 2] + CRLF
+					+ (i % 2 == 1 ? "Connection: keep-alive" : "Connection: close") + CRLF
+					+ "Content-Type: " + contentType + CRLF
+					+ "Content-Length: ")).asReadOnlyBuffer();
+			}
+			ByteBuffer[] existing = prefixes.putIfAbsent(contentType, forType);
+			if(existing != null)
+			{
+				forType = existing;
+			}
+		}
+		return forType[index * 2 + (keepAlive ? 1 : 0)].duplicate();
+	}
+
+	/**
+	 * Gets the Expires header for things that are cached for ages, followed by
+	 * the blank line that ends the header. The value is only recalculated once
+	 * per second.
+	 * @param now Current time
+	 * @return Buffer containing header
+	 */
+	static ByteBuffer getExpires(long now)
+	{
+		long second = now / 1000L;
+		Expires current = expires;
+		if(current == null || current.second != second)
+		{
+			current = new Expires(second);
+			expires = current;
+		}
+		return current.header.duplicate();
+	}
+
+	/** @return Buffer containing the blank line that ends a header */
+	static ByteBuffer getEnd()
+	{
+		return END.duplicate();
+	}
+
+	/**
+	 * @param text ASCII text
+	 * @return Bytes of text
+	 */
+	static byte[] getBytes(String text)
+	{
+		byte[] result = new byte[text.length()];
+		for(int i=0; i<result.length; i++)
+		{
+			result[i] = (byte)text.charAt(i);
+		}
+		return result;
+	}
+}
@@ -71,6 +71,12 @@ public class SayMessage extends UniqueMessage
 		return ",text:'" + JS.esc(message) + "'";
 	}
 
+	@Override
+	protected String getAdditionalJSON(boolean trusted)
+	{
+		return ",\"text\":\"" + JS.escJSON(message) + "\"";
+	}
+
 	@Override
 	protected String getAdditionalLog()
 	{
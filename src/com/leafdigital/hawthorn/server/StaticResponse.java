@@ -0,0 +1,74 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Complete HTTP response for data that never changes (such as the favicon).
+ * The header and data are built once; sending the response only duplicates
+ * the buffers, so nothing is copied.
+ */
+final class StaticResponse
+{
+	/** Header up to and including Content-Length, for close/keep-alive */
+	private final ByteBuffer[] headers = new ByteBuffer[2];
+	private final ByteBuffer data;
+	private final boolean cacheForAges;
+
+	/**
+	 * @param code HTTP code
+	 * @param data Data to send
+	 * @param contentType Content type
+	 * @param cacheForAges If true, browsers are told to cache data for ages
+	 * @throws IllegalArgumentException If the HTTP code isn't supported
+	 */
+	StaticResponse(int code, byte[] data, String contentType,
+		boolean cacheForAges) throws IllegalArgumentException
+	{
+		byte[] length = ResponseHeaders.getBytes(data.length + "\r\n");
+		for(int i=0; i<headers.length; i++)
+		{
+			ByteBuffer prefix = ResponseHeaders.getPrefix(code, contentType, i == 1);
+			ByteBuffer header = ByteBuffer.allocate(prefix.remaining() + length.length);
+			header.put(prefix);
+			header.put(length);
+			header.flip();
+			headers[i] = header.asReadOnlyBuffer();
+		}
+		this.data = ByteBuffer.wrap(data).asReadOnlyBuffer();
+		this.cacheForAges = cacheForAges;
+	}
+
+	/**
+	 * @param keepAlive True if connection stays open after response
+	 * @param now Current time
+	 * @return Buffers to write, in order
+	 */
+	ByteBuffer[] getBuffers(boolean keepAlive, long now)
+	{
+		return new ByteBuffer[]
+		{
+			headers[keepAlive ? 1 : 0].duplicate(),
+			cacheForAges ? ResponseHeaders.getExpires(now) : ResponseHeaders.getEnd(),
+			data.duplicate()
+		};
+	}
+}
@@ -24,7 +24,7 @@ import java.text.NumberFormat;
 import java.util.*;
 
 import com.leafdigital.hawthorn.server.Configuration.ServerInfo;
-import com.leafdigital.hawthorn.util.XML;
+import com.leafdigital.hawthorn.util.*;
 
 /** Class that tracks statistics every minute. */
 public class Statistics extends HawthornObject
@@ -38,7 +38,7 @@ public class Statistics extends HawthornObject
 	private int currentHour, currentDay;
 
 	private StatisticsEvent event;
-	private int eventId;
+	private TimerWheel.Timer<Event> eventTimer;
 
 	private final static String STATS_STYLE =
 		"body { font: 11px Verdana, sans-serif; }" +
@@ -67,7 +67,6 @@ public class Statistics extends HawthornObject
 	{
 		super(app);
 		event = new StatisticsEvent(app);
-		eventId = -1;
 	}
 
 	/**
@@ -79,7 +78,7 @@ public class Statistics extends HawthornObject
 		Calendar calendar = Calendar.getInstance();
 		currentHour = calendar.get(Calendar.HOUR_OF_DAY);
 		currentDay = calendar.get(Calendar.DAY_OF_MONTH);
-		eventId = getEventHandler().addTimedEvent(getNextMinute(calendar), event);
+		eventTimer = getEventHandler().addTimedEvent(getNextMinute(calendar), event);
 	}
 
 	/**
@@ -87,9 +86,9 @@ public class Statistics extends HawthornObject
 	 */
 	void close()
 	{
-		if(eventId != -1)
+		if(eventTimer != null)
 		{
-			getEventHandler().removeTimedEvent(eventId);
+			getEventHandler().removeTimedEvent(eventTimer);
 		}
 	}
 
@@ -219,7 +218,7 @@ public class Statistics extends HawthornObject
 			}
 
 			// Add event again for next minute
-			eventId = getEventHandler().addTimedEvent(getNextMinute(calendar), event);
+			eventTimer = getEventHandler().addTimedEvent(getNextMinute(calendar), event);
 		}
 	}
 
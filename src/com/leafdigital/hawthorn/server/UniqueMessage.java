@@ -22,7 +22,11 @@ package com.leafdigital.hawthorn.server;
 /** Messages which are checked for uniqueness. */
 public abstract class UniqueMessage extends Message
 {
+	/** Value of getUniqueNumber() when the identifier isn't a number */
+	static final long NOT_NUMERIC = -1;
+
 	private String unique;
+	private long uniqueNumber;
 
 	/**
 	 * @param time Time of message
@@ -40,6 +44,42 @@ public abstract class UniqueMessage extends Message
 	{
 		super(time, channel, ip, user, userMasked, displayName, extra);
 		this.unique = unique;
+		this.uniqueNumber = parseUnique(unique);
+	}
+
+	/**
+	 * @param unique Unique identifier
+	 * @return Identifier as a number, or NOT_NUMERIC if it isn't 1-18 digits
+	 *   with no leading zero (so that different strings never give the same
+	 *   number)
+	 */
+	private static long parseUnique(String unique)
+	{
+		if(unique == null || unique.length() == 0 || unique.length() > 18
+			|| (unique.charAt(0) == '0' && unique.length() > 1))
+		{
+			return NOT_NUMERIC;
+		}
+		long result = 0;
+		for(int i = 0; i < unique.length(); i++)
+		{
+			char c = unique.charAt(i);
+			if(c < '0' || c > '9')
+			{
+				return NOT_NUMERIC;
+			}
+			result = result * 10 + (c - '0');
+		}
+		return result;
+	}
+
+	/**
+	 * @return Unique identifier as a number (this is almost always possible),
+	 *   or NOT_NUMERIC
+	 */
+	long getUniqueNumber()
+	{
+		return uniqueNumber;
 	}
 
 	/** @return Unique identifier (within channel and user) to avoid duplicates */
@@ -49,8 +89,8 @@ public abstract class UniqueMessage extends Message
 	}
 
 	@Override
-	public String getServerFormat()
+	protected String buildServerFormat()
 	{
-		return super.getServerFormat() + "}" + unique;
+		return super.buildServerFormat() + "}" + unique;
 	}
 }
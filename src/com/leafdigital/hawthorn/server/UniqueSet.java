@@ -0,0 +1,147 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+/**
+ * Set of (user, unique number) pairs, used to spot duplicate messages. Uses
+ * open addressing in two parallel arrays, so adding, checking and removing
+ * don't create any objects. Not synchronized.
+ */
+final class UniqueSet
+{
+	private final static int INITIAL_SIZE = 16;
+
+	private String[] users = new String[INITIAL_SIZE];
+	private long[] uniques = new long[INITIAL_SIZE];
+	private int size;
+
+	/** @return Number of entries */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * @param user User name
+	 * @param unique Unique number
+	 * @param mask Table size minus one
+	 * @return Preferred slot for the entry
+	 */
+	private static int slot(String user, long unique, int mask)
+	{
+		int hash = user.hashCode() * 0x9e3779b9 ^ (int)(unique ^ (unique >>> 32));
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * Adds an entry.
+	 * @param user User name
+	 * @param unique Unique number
+	 * @return True if added, false if it was already present
+	 */
+	boolean add(String user, long unique)
+	{
+		int mask = users.length - 1;
+		int i = slot(user, unique, mask);
+		for(; users[i] != null; i = (i + 1) & mask)
+		{
+			if(uniques[i] == unique && users[i].equals(user))
+			{
+				return false;
+			}
+		}
+		users[i] = user;
+		uniques[i] = unique;
+		size++;
+
+		// Keep table no more than half full
+		if(size * 2 > users.length)
+		{
+			resize(users.length * 2);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes an entry, if present.
+	 * @param user User name
+	 * @param unique Unique number
+	 * @return True if it was removed
+	 */
+	boolean remove(String user, long unique)
+	{
+		int mask = users.length - 1;
+		int i = slot(user, unique, mask);
+		for(; users[i] != null; i = (i + 1) & mask)
+		{
+			if(uniques[i] == unique && users[i].equals(user))
+			{
+				break;
+			}
+		}
+		if(users[i] == null)
+		{
+			return false;
+		}
+
+		// Shift back any following entries that would no longer be found
+		int gap = i;
+		for(int j = (gap + 1) & mask; users[j] != null; j = (j + 1) & mask)
+		{
+			int preferred = slot(users[j], uniques[j], mask);
+			// Move the entry if its preferred slot isn't between gap and j
+			if(((j - preferred) & mask) >= ((j - gap) & mask))
+			{
+				users[gap] = users[j];
+				uniques[gap] = uniques[j];
+				gap = j;
+			}
+		}
+		users[gap] = null;
+		size--;
+		return true;
+	}
+
+	/**
+	 * Moves all entries into new arrays.
+	 * @param length New length (power of two)
+	 */
+	private void resize(int length)
+	{
+		String[] oldUsers = users;
+		long[] oldUniques = uniques;
+		users = new String[length];
+		uniques = new long[length];
+		int mask = length - 1;
+		for(int i = 0; i < oldUsers.length; i++)
+		{
+			if(oldUsers[i] != null)
+			{
+				int j = slot(oldUsers[i], oldUniques[i], mask);
+				while(users[j] != null)
+				{
+					j = (j + 1) & mask;
+				}
+				users[j] = oldUsers[i];
+				uniques[j] = oldUniques[i];
+			}
+		}
+	}
+}
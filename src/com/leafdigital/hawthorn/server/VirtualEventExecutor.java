@@ -0,0 +1,100 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.server;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor that runs each event on its own virtual thread, so that events
+ * which block (for example on file I/O) don't hold up others. Virtual threads
+ * need Java 21; on older versions the server will not start.
+ */
+class VirtualEventExecutor extends HawthornObject implements EventExecutor
+{
+	private ExecutorService service;
+
+	/** Events that have been submitted but not yet started */
+	private AtomicInteger queueSize = new AtomicInteger();
+
+	/**
+	 * @param app Application main class
+	 * @throws StartupException If virtual threads are not available
+	 */
+	VirtualEventExecutor(Hawthorn app) throws StartupException
+	{
+		super(app);
+		try
+		{
+			// Executors.newVirtualThreadPerTaskExecutor() (Java 21)
+			service = (ExecutorService)Executors.class.getMethod(
+				"newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(Exception e)
+		{
+			throw new StartupException(ErrorCode.STARTUP_CONFIGFORMAT,
+				"The <eventthreads> value 'virtual' requires Java 21 or later.", e);
+		}
+	}
+
+	public void execute(final Event e)
+	{
+		queueSize.incrementAndGet();
+		service.execute(new Runnable()
+		{
+			public void run()
+			{
+				queueSize.decrementAndGet();
+				try
+				{
+					e.handle();
+				}
+				catch(Throwable t)
+				{
+					getLogger().log(Logger.SYSTEM_LOG, Logger.Level.ERROR,
+						"Event processing error (virtual thread)", t);
+				}
+			}
+		});
+	}
+
+	public int getQueueSize()
+	{
+		return queueSize.get();
+	}
+
+	public void close()
+	{
+		service.shutdown();
+		while(true)
+		{
+			try
+			{
+				if(service.awaitTermination(1, TimeUnit.SECONDS))
+				{
+					return;
+				}
+			}
+			catch(InterruptedException e)
+			{
+			}
+		}
+	}
+}
@@ -19,10 +19,10 @@ along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
 */
 package com.leafdigital.hawthorn.util;
 
-import java.io.*;
-import java.math.BigInteger;
 import java.security.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Calculates Hawthorn authentication keys. */
 public abstract class Auth
@@ -138,91 +138,285 @@ public abstract class Auth
 	}
 
 	/**
-	 * Call to enable the thread-local hash cache. This must be called on each
-	 * thread that uses the cache. If a thread is to be discarded, call this
-	 * again to disable the cache and free space.
-	 * According to my testing, a single thread cache takes about 1MB (on a 64-bit
-	 * system).
-	 * @param enable True to enable the cache for this thread
+	 * Checks an authentication key. This gives the same result as comparing
+	 * against {@link #getKey(String, String, String, String, EnumSet, String, long)},
+	 * but encodes the data into a pooled buffer and compares the digest
+	 * directly against the hex key, so it does not usually create any objects.
+	 * @param key Key to check
+	 * @param magicNumber Server's secret number
+	 * @param user User name
+	 * @param displayName Display name
+	 * @param extra Extra user data
+	 * @param permissionSet Permissions
+	 * @param channel Channel name
+	 * @param keyTime Time of key
+	 * @return True if the key is valid
+	 * @throws NoSuchAlgorithmException If SHA-1 isn't installed
 	 */
-	public static void enableThreadCache(boolean enable)
+	public static boolean isValidKey(String key, String magicNumber,
+		String user, String displayName, String extra,
+		EnumSet<Permission> permissionSet, String channel,
+		long keyTime) throws NoSuchAlgorithmException
 	{
-		if(enable)
+		if(key.length() != 40)
 		{
-			fastCaches.set(new FastCache());
+			return false;
 		}
-		else
+
+		// Encode data used for hash (same format as getKey)
+		Hasher hasher = acquireHasher();
+		try
+		{
+			hasher.append(channel);
+			hasher.append('\n');
+			hasher.append(user);
+			hasher.append('\n');
+			hasher.append(displayName);
+			hasher.append('\n');
+			hasher.append(extra);
+			hasher.append('\n');
+			for(Permission p : permissionSet)
+			{
+				hasher.append(p.code.charAt(0));
+			}
+			hasher.append('\n');
+			hasher.append(keyTime);
+			hasher.append('\n');
+			hasher.append(magicNumber);
+
+			// Compare digest with key, two hex digits per byte
+			byte[] digest = hasher.digest();
+			for(int i=0; i<digest.length; i++)
+			{
+				int b = digest[i];
+				if(key.charAt(i*2) != HEX[(b >> 4) & 0xf]
+					|| key.charAt(i*2+1) != HEX[b & 0xf])
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		finally
 		{
-			fastCaches.set(null);
+			releaseHasher(hasher);
 		}
 	}
 
+	/** Lower-case hex digits, as used in keys */
+	private final static char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Maximum number of idle hashers kept; more than this are only needed if
+	 * many threads check keys at once
+	 */
+	private final static int MAX_POOLED_HASHERS = 64;
+
 	/**
-	 * Number of entries to store in the hash cache (per thread).
-	 * This value must, in binary, have all its rightmost bits set to 1 (ie
-	 * after you have a 0 you can't have any 1s to the left of it).
+	 * Idle hashing state. This is a pool rather than one per thread, so that
+	 * it still helps when each event runs on a new (virtual) thread.
 	 */
-	private final static int CACHE_MASK = 0x7fff;
+	private final static ConcurrentLinkedQueue<Hasher> hashers =
+		new ConcurrentLinkedQueue<Hasher>();
 
-	/** Thread-local variable storing cache for each thread. */
-	private static ThreadLocal<FastCache> fastCaches =
-		new ThreadLocal<FastCache>();
+	/** Number of hashers in pool */
+	private final static AtomicInteger hashersSize = new AtomicInteger();
 
 	/**
-	 * Cache stores names and values according to their hashCode,
-	 * bitwise AND with CACHE_MASK.
+	 * @return Empty hashing state from the pool, or a new one if the pool is
+	 *   empty
+	 * @throws NoSuchAlgorithmException If SHA-1 isn't installed
 	 */
-	private static class FastCache
+	private static Hasher acquireHasher() throws NoSuchAlgorithmException
 	{
-		private String[] fastCache = new String[CACHE_MASK+1];
-		private String[] fastCacheValue = new String[CACHE_MASK+1];
+		Hasher hasher = hashers.poll();
+		if(hasher == null)
+		{
+			return new Hasher();
+		}
+		hashersSize.decrementAndGet();
+		hasher.length = 0;
+		return hasher;
 	}
 
 	/**
-	 * @param string String to hash
-	 * @return SHA-1 hash of strung
-	 * @throws NoSuchAlgorithmException If Java is missing the SHA-1 provider
+	 * Returns hashing state to the pool, unless the pool is full.
+	 * @param hasher Hasher that is no longer in use
 	 */
-	public static String hash(String string) throws NoSuchAlgorithmException
+	private static void releaseHasher(Hasher hasher)
 	{
-		// Try cache
-		int hashCode = -1;
-		FastCache cache = fastCaches.get();
-		if(cache!=null)
+		if(hashersSize.incrementAndGet() <= MAX_POOLED_HASHERS)
+		{
+			hashers.offer(hasher);
+		}
+		else
 		{
-			hashCode = string.hashCode() & CACHE_MASK;
-			if(string.equals(cache.fastCache[hashCode]))
+			hashersSize.decrementAndGet();
+		}
+	}
+
+	/**
+	 * SHA-1 digest plus buffers that are reused between calls. Only used by
+	 * one thread at a time.
+	 */
+	private static class Hasher
+	{
+		private final MessageDigest digest;
+		private final byte[] result = new byte[20];
+		private byte[] data = new byte[256];
+		private int length;
+
+		private Hasher() throws NoSuchAlgorithmException
+		{
+			digest = MessageDigest.getInstance("SHA-1");
+		}
+
+		/**
+		 * Ensures there is space for more data.
+		 * @param extra Number of bytes that will be added
+		 */
+		private void ensure(int extra)
+		{
+			if(length + extra > data.length)
 			{
-				return cache.fastCacheValue[hashCode];
+				byte[] newData = new byte[Math.max(data.length * 2, length + extra)];
+				System.arraycopy(data, 0, newData, 0, length);
+				data = newData;
 			}
 		}
 
-		// Get bytes
-		byte[] hashDataBytes;
-		try
+		/**
+		 * Adds a string as UTF-8. Unpaired surrogates become '?', matching
+		 * String.getBytes.
+		 * @param s String to add
+		 */
+		private void append(String s)
 		{
-			hashDataBytes = string.getBytes("UTF-8");
+			int count = s.length();
+			ensure(count * 3);
+			byte[] data = this.data;
+			int pos = length;
+			for(int i=0; i<count; i++)
+			{
+				char c = s.charAt(i);
+				if(c < 0x80)
+				{
+					data[pos++] = (byte)c;
+				}
+				else if(c < 0x800)
+				{
+					data[pos++] = (byte)(0xc0 | (c >> 6));
+					data[pos++] = (byte)(0x80 | (c & 0x3f));
+				}
+				else if(Character.isHighSurrogate(c) && i+1 < count
+					&& Character.isLowSurrogate(s.charAt(i+1)))
+				{
+					int code = Character.toCodePoint(c, s.charAt(++i));
+					data[pos++] = (byte)(0xf0 | (code >> 18));
+					data[pos++] = (byte)(0x80 | ((code >> 12) & 0x3f));
+					data[pos++] = (byte)(0x80 | ((code >> 6) & 0x3f));
+					data[pos++] = (byte)(0x80 | (code & 0x3f));
+				}
+				else if(Character.isHighSurrogate(c) || Character.isLowSurrogate(c))
+				{
+					data[pos++] = (byte)'?';
+				}
+				else
+				{
+					data[pos++] = (byte)(0xe0 | (c >> 12));
+					data[pos++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+					data[pos++] = (byte)(0x80 | (c & 0x3f));
+				}
+			}
+			length = pos;
 		}
-		catch(UnsupportedEncodingException e)
+
+		/**
+		 * Adds an ASCII character.
+		 * @param c Character to add
+		 */
+		private void append(char c)
 		{
-			throw new Error("No UTF-8 support?!", e);
+			ensure(1);
+			data[length++] = (byte)c;
 		}
 
-		// Hash data and return 40-character string
-		MessageDigest m;
-		m = MessageDigest.getInstance("SHA-1");
-		m.update(hashDataBytes, 0, hashDataBytes.length);
-		String sha1 = new BigInteger(1, m.digest()).toString(16);
-		while(sha1.length() < 40)
+		/**
+		 * Adds a number in decimal, as Long.toString would.
+		 * @param value Number to add
+		 */
+		private void append(long value)
 		{
-			sha1 = "0" + sha1;
+			ensure(20);
+			if(value < 0)
+			{
+				data[length++] = (byte)'-';
+			}
+			else
+			{
+				value = -value;
+			}
+			// Work with negative values so that Long.MIN_VALUE is handled
+			int start = length;
+			do
+			{
+				data[length++] = (byte)('0' - (value % 10));
+				value /= 10;
+			}
+			while(value != 0);
+			for(int i=start, j=length-1; i<j; i++, j--)
+			{
+				byte temp = data[i];
+				data[i] = data[j];
+				data[j] = temp;
+			}
 		}
 
-		if(cache!=null)
+		/**
+		 * Hashes the buffered data.
+		 * @return Digest (reused on next call)
+		 */
+		private byte[] digest()
+		{
+			digest.update(data, 0, length);
+			try
+			{
+				digest.digest(result, 0, result.length);
+			}
+			catch(DigestException e)
+			{
+				throw new Error("Unexpected SHA-1 digest length", e);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * @param string String to hash
+	 * @return SHA-1 hash of strung
+	 * @throws NoSuchAlgorithmException If Java is missing the SHA-1 provider
+	 */
+	public static String hash(String string) throws NoSuchAlgorithmException
+	{
+		Hasher hasher = acquireHasher();
+		try
+		{
+			hasher.append(string);
+			byte[] digest = hasher.digest();
+
+			// Convert to 40-character hex string
+			char[] sha1 = new char[40];
+			for(int i=0; i<digest.length; i++)
+			{
+				int b = digest[i];
+				sha1[i*2] = HEX[(b >> 4) & 0xf];
+				sha1[i*2+1] = HEX[b & 0xf];
+			}
+			return new String(sha1);
+		}
+		finally
 		{
-			cache.fastCache[hashCode] = string;
-			cache.fastCacheValue[hashCode] = sha1;
+			releaseHasher(hasher);
 		}
-		return sha1;
 	}
 }
@@ -44,6 +44,38 @@ public abstract class JS
 		return out.toString();
 	}
 
+	/**
+	 * Escapes a string suitable for inclusion within double quotes in JSON.
+	 * @param text String to escape
+	 * @return String with some characters escaped
+	 */
+	public static String escJSON(String text)
+	{
+		StringBuilder out = new StringBuilder(text.length()*2);
+		for(int i=0;i<text.length();i++)
+		{
+			char c=text.charAt(i);
+			switch(c)
+			{
+			case '\\' : out.append("\\\\"); break;
+			case '"' : out.append("\\\""); break;
+			default:
+				if(c < 0x20)
+				{
+					out.append("\\u00");
+					out.append(Character.forDigit(c >> 4, 16));
+					out.append(Character.forDigit(c & 0xf, 16));
+				}
+				else
+				{
+					out.append(c);
+				}
+				break;
+			}
+		}
+		return out.toString();
+	}
+
 	/**
 	 * Escapes a string suitable for inclusion within JS single quotes,
 	 * inside a double-quoted HTML attribute.
@@ -0,0 +1,257 @@
+/*
+Copyright 2009 Samuel Marshall
+http://www.leafdigital.com/software/hawthorn/
+
+This file is part of Hawthorn.
+
+Hawthorn is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+Hawthorn is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with Hawthorn.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package com.leafdigital.hawthorn.util;
+
+import java.util.Collection;
+
+/**
+ * Hashed timing wheel. Timers are placed in one of a fixed number of slots
+ * according to the tick in which they are due; each slot is a doubly-linked
+ * list, so adding and cancelling a timer take constant time however many
+ * timers there are.
+ * <p>
+ * This class is not synchronized. Callers must synchronize on the wheel
+ * object (or otherwise ensure only one thread uses it at a time).
+ * @param <T> Type of item that is returned when a timer expires
+ */
+public class TimerWheel<T>
+{
+	/**
+	 * Handle for a timer in the wheel; can be used to cancel it.
+	 * @param <T> Type of item
+	 */
+	public static final class Timer<T>
+	{
+		private long tick;
+		private T item;
+		private Timer<T> previous, next;
+		private boolean scheduled;
+
+		private Timer(long tick, T item)
+		{
+			this.tick = tick;
+			this.item = item;
+		}
+
+		/** @return Item that will be returned when the timer expires */
+		public T getItem()
+		{
+			return item;
+		}
+	}
+
+	private int tickLength, mask;
+
+	private Timer<T>[] slots;
+
+	/** Next tick that has not yet been expired */
+	private long nextTick;
+
+	private int size;
+
+	/**
+	 * Tick of earliest timer, as returned by {@link #getNextExpireTime()}, or
+	 * 0 if it needs working out again
+	 */
+	private long nextExpireTick;
+
+	/**
+	 * @param tickLength Length of each tick in milliseconds; timers expire
+	 *   up to this long after their due time
+	 * @param slotCount Number of slots; must be a power of two
+	 * @param now Current time in milliseconds
+	 * @throws IllegalArgumentException If slot count isn't a power of two
+	 */
+	public TimerWheel(int tickLength, int slotCount, long now)
+		throws IllegalArgumentException
+	{
+		if(slotCount <= 0 || (slotCount & (slotCount - 1)) != 0)
+		{
+			throw new IllegalArgumentException("Slot count must be a power of two");
+		}
+		this.tickLength = tickLength;
+		this.mask = slotCount - 1;
+		slots = newSlots(slotCount);
+		nextTick = now / tickLength + 1;
+	}
+
+	/**
+	 * @param <T> Type of item
+	 * @param count Number of slots
+	 * @return New empty slot array
+	 */
+	@SuppressWarnings("unchecked")
+	private static <T> Timer<T>[] newSlots(int count)
+	{
+		return (Timer<T>[])new Timer<?>[count];
+	}
+
+	/**
+	 * Adds a timer.
+	 * @param time Time at which timer should expire (if this is in the past,
+	 *   it expires at the next tick)
+	 * @param item Item to return when it expires
+	 * @return Handle that can be used to cancel the timer
+	 */
+	public Timer<T> add(long time, T item)
+	{
+		// Round up, so that timers never expire early
+		long tick = Math.max((time + tickLength - 1) / tickLength, nextTick);
+		Timer<T> timer = new Timer<T>(tick, item);
+		int slot = (int)(tick & mask);
+		timer.next = slots[slot];
+		if(timer.next != null)
+		{
+			timer.next.previous = timer;
+		}
+		slots[slot] = timer;
+		timer.scheduled = true;
+		size++;
+		if(nextExpireTick != 0 && tick < nextExpireTick)
+		{
+			nextExpireTick = tick;
+		}
+		return timer;
+	}
+
+	/**
+	 * Cancels a timer. Does nothing if it has already expired or been
+	 * cancelled.
+	 * @param timer Timer handle
+	 * @return True if the timer was cancelled, false if it wasn't there
+	 */
+	public boolean cancel(Timer<T> timer)
+	{
+		if(!timer.scheduled)
+		{
+			return false;
+		}
+		unlink(timer);
+		return true;
+	}
+
+	private void unlink(Timer<T> timer)
+	{
+		if(timer.previous == null)
+		{
+			slots[(int)(timer.tick & mask)] = timer.next;
+		}
+		else
+		{
+			timer.previous.next = timer.next;
+		}
+		if(timer.next != null)
+		{
+			timer.next.previous = timer.previous;
+		}
+		timer.previous = null;
+		timer.next = null;
+		timer.scheduled = false;
+		size--;
+	}
+
+	/**
+	 * Expires all timers that are due.
+	 * @param now Current time in milliseconds
+	 * @param expired Collection that receives the items of expired timers
+	 */
+	public void expire(long now, Collection<T> expired)
+	{
+		long nowTick = now / tickLength;
+		nextExpireTick = 0;
+		if(size == 0 || nowTick - nextTick > mask)
+		{
+			// Either nothing to do, or it's been more than a full rotation since
+			// the last call, in which case one pass over every slot is enough
+			if(size > 0)
+			{
+				for(int slot = 0; slot <= mask; slot++)
+				{
+					expireSlot(slot, nowTick, expired);
+				}
+			}
+			nextTick = Math.max(nextTick, nowTick + 1);
+			return;
+		}
+		for(; nextTick <= nowTick; nextTick++)
+		{
+			expireSlot((int)(nextTick & mask), nextTick, expired);
+		}
+	}
+
+	private void expireSlot(int slot, long tick, Collection<T> expired)
+	{
+		Timer<T> timer = slots[slot];
+		while(timer != null)
+		{
+			Timer<T> next = timer.next;
+			if(timer.tick <= tick)
+			{
+				unlink(timer);
+				expired.add(timer.item);
+			}
+			timer = next;
+		}
+	}
+
+	/**
+	 * Finds the time of the earliest timer, so that callers don't need to
+	 * wake up for ticks with nothing in. The result is remembered until the
+	 * next call to {@link #expire(long, Collection)}; cancelling a timer does
+	 * not update it, so it may be earlier than necessary.
+	 * @return Time at which {@link #expire(long, Collection)} should next be
+	 *   called, or -1 if there are no timers
+	 */
+	public long getNextExpireTime()
+	{
+		if(size == 0)
+		{
+			return -1;
+		}
+		if(nextExpireTick == 0)
+		{
+			// Check slots in tick order. The first timer that is due in the
+			// tick being checked is the earliest; if there isn't one within a
+			// rotation, every timer has been looked at on the way.
+			long earliest = Long.MAX_VALUE;
+			search: for(long tick = nextTick; tick <= nextTick + mask; tick++)
+			{
+				for(Timer<T> timer = slots[(int)(tick & mask)]; timer != null;
+					timer = timer.next)
+				{
+					if(timer.tick == tick)
+					{
+						earliest = tick;
+						break search;
+					}
+					earliest = Math.min(earliest, timer.tick);
+				}
+			}
+			nextExpireTick = earliest;
+		}
+		return nextExpireTick * tickLength;
+	}
+
+	/** @return Number of timers in the wheel */
+	public int size()
+	{
+		return size;
+	}
+}